@@ -30,6 +30,7 @@ import net.md_5.bungee.api.plugin.Plugin;
 import net.md_5.bungee.api.plugin.TabExecutor;
 
 import java.nio.file.Path;
+import java.util.logging.Level;
 import java.util.stream.Stream;
 
 public class BungeeCordSparkPlugin extends Plugin implements SparkPlugin {
@@ -72,6 +73,11 @@ public class BungeeCordSparkPlugin extends Plugin implements SparkPlugin {
         ).map(sender -> new BungeeCordCommandSender(sender, this.audienceFactory));
     }
 
+    @Override
+    public void log(Level level, String msg) {
+        getLogger().log(level, msg);
+    }
+
     @Override
     public void executeAsync(Runnable task) {
         getProxy().getScheduler().runAsync(BungeeCordSparkPlugin.this, task);
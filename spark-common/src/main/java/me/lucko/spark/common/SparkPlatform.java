@@ -32,6 +32,7 @@ import me.lucko.spark.common.command.modules.GcMonitoringModule;
 import me.lucko.spark.common.command.modules.HealthModule;
 import me.lucko.spark.common.command.modules.HeapAnalysisModule;
 import me.lucko.spark.common.command.modules.SamplerModule;
+import me.lucko.spark.common.command.modules.SpikeModule;
 import me.lucko.spark.common.command.modules.TickMonitoringModule;
 import me.lucko.spark.common.command.sender.CommandSender;
 import me.lucko.spark.common.command.tabcomplete.CompletionSupplier;
@@ -39,9 +40,14 @@ import me.lucko.spark.common.command.tabcomplete.TabCompleter;
 import me.lucko.spark.common.monitor.cpu.CpuMonitor;
 import me.lucko.spark.common.monitor.memory.GarbageCollectorStatistics;
 import me.lucko.spark.common.monitor.tick.TickStatistics;
+import me.lucko.spark.common.sampler.Sampler;
+import me.lucko.spark.common.sampler.SamplerBuilder;
+import me.lucko.spark.common.sampler.ThreadDumper;
+import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.tick.TickHook;
 import me.lucko.spark.common.sampler.tick.TickReporter;
 import me.lucko.spark.common.util.BytebinClient;
+import me.lucko.spark.common.util.Configuration;
 import net.kyori.adventure.text.event.ClickEvent;
 import okhttp3.OkHttpClient;
 
@@ -50,6 +56,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 import static net.kyori.adventure.text.Component.*;
@@ -69,6 +77,7 @@ public class SparkPlatform {
     public static final BytebinClient BYTEBIN_CLIENT = new BytebinClient(OK_HTTP_CLIENT, "https://bytebin.lucko.me/", "spark-plugin");
 
     private final SparkPlugin plugin;
+    private final Configuration configuration;
     private final List<CommandModule> commandModules;
     private final List<Command> commands;
     private final ActivityLog activityLog;
@@ -77,12 +86,15 @@ public class SparkPlatform {
     private final TickStatistics tickStatistics;
     private Map<String, GarbageCollectorStatistics> startupGcStatistics = ImmutableMap.of();
     private long serverNormalOperationStartTime;
+    private Sampler backgroundSampler;
 
     public SparkPlatform(SparkPlugin plugin) {
         this.plugin = plugin;
+        this.configuration = new Configuration(plugin.getPluginDirectory().resolve("config.json"));
 
         this.commandModules = ImmutableList.of(
                 new SamplerModule(),
+                new SpikeModule(),
                 new HealthModule(),
                 new TickMonitoringModule(),
                 new GcMonitoringModule(),
@@ -115,6 +127,10 @@ public class SparkPlatform {
         }
         CpuMonitor.ensureMonitoring();
 
+        if (this.configuration.getBoolean("backgroundSampler", false)) {
+            startBackgroundSampler();
+        }
+
         // poll startup GC statistics after plugins & the world have loaded
         this.plugin.executeAsync(() -> {
             this.startupGcStatistics = GarbageCollectorStatistics.pollStats();
@@ -122,6 +138,29 @@ public class SparkPlatform {
         });
     }
 
+    private void startBackgroundSampler() {
+        double interval = this.configuration.getDouble("backgroundSamplerInterval", 50);
+        int window = this.configuration.getInteger("backgroundSamplerWindow", 15);
+        if (interval <= 0 || window <= 0) {
+            this.plugin.log(Level.WARNING, "Not starting the background sampler, the backgroundSamplerInterval and backgroundSamplerWindow options must be positive.");
+            return;
+        }
+
+        // the background sampler only samples the server thread, unless told otherwise
+        ThreadDumper threadDumper = this.plugin.getDefaultThreadDumper();
+        if (!(threadDumper instanceof ThreadDumper.Specific) && !this.configuration.getBoolean("backgroundSamplerAllThreads", false)) {
+            this.plugin.log(Level.INFO, "Not starting the background sampler, this platform has no server thread to sample. Set the backgroundSamplerAllThreads option to sample every thread instead.");
+            return;
+        }
+
+        this.backgroundSampler = new SamplerBuilder()
+                .threadDumper(threadDumper)
+                .threadGrouper(ThreadGrouper.BY_POOL)
+                .samplingInterval(interval)
+                .rollingWindow(window, TimeUnit.MINUTES)
+                .start();
+    }
+
     public void disable() {
         if (this.tickHook != null) {
             this.tickHook.close();
@@ -130,6 +169,11 @@ public class SparkPlatform {
             this.tickReporter.close();
         }
 
+        if (this.backgroundSampler != null) {
+            this.backgroundSampler.close(true);
+            this.backgroundSampler = null;
+        }
+
         for (CommandModule module : this.commandModules) {
             module.close();
         }
@@ -139,6 +183,10 @@ public class SparkPlatform {
         return this.plugin;
     }
 
+    public Configuration getConfiguration() {
+        return this.configuration;
+    }
+
     public ActivityLog getActivityLog() {
         return this.activityLog;
     }
@@ -155,6 +203,16 @@ public class SparkPlatform {
         return this.tickStatistics;
     }
 
+    /**
+     * Gets the sampler which runs continuously in the background, retaining a rolling
+     * window of data.
+     *
+     * @return the background sampler, or null if it is disabled
+     */
+    public Sampler getBackgroundSampler() {
+        return this.backgroundSampler;
+    }
+
     public Map<String, GarbageCollectorStatistics> getStartupGcStatistics() {
         return this.startupGcStatistics;
     }
@@ -27,6 +27,8 @@ import me.lucko.spark.common.sampler.tick.TickHook;
 import me.lucko.spark.common.sampler.tick.TickReporter;
 
 import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
@@ -64,6 +66,16 @@ public interface SparkPlugin {
      */
     Stream<? extends CommandSender> getSendersWithPermission(String permission);
 
+    /**
+     * Prints a message to the platform's log.
+     *
+     * @param level the level of the message
+     * @param msg the message
+     */
+    default void log(Level level, String msg) {
+        Logger.getLogger("spark").log(level, msg);
+    }
+
     /**
      * Executes the given {@link Runnable} asynchronously using the plugins scheduler.
      *
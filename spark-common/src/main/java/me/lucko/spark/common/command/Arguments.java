@@ -20,25 +20,27 @@
 
 package me.lucko.spark.common.command;
 
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.SetMultimap;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Arguments {
     private static final Pattern FLAG_REGEX = Pattern.compile("^--(.+)$");
+    private static final Pattern DURATION_REGEX = Pattern.compile("^(\\d+)([smh]?)$");
 
     private final List<String> rawArgs;
     private final SetMultimap<String, String> parsedArgs;
 
     public Arguments(List<String> rawArgs) {
         this.rawArgs = rawArgs;
-        this.parsedArgs = HashMultimap.create();
+        this.parsedArgs = LinkedHashMultimap.create();
 
         String flag = null;
         List<String> value = null;
@@ -101,6 +103,34 @@ public class Arguments {
         return -1; // undefined
     }
 
+    /**
+     * Parses a duration flag, such as {@code 30s}, {@code 10m} or {@code 1h}. Values without
+     * a unit are treated as seconds.
+     *
+     * @param key the flag
+     * @return the duration in milliseconds, or -1 if undefined
+     */
+    public long durationFlag(String key) {
+        Iterator<String> it = this.parsedArgs.get(key).iterator();
+        if (it.hasNext()) {
+            Matcher matcher = DURATION_REGEX.matcher(it.next().toLowerCase());
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid input for '" + key + "' argument. Please specify a duration, e.g. 30s, 10m or 1h!");
+            }
+
+            long value = Long.parseLong(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "m":
+                    return TimeUnit.MINUTES.toMillis(value);
+                case "h":
+                    return TimeUnit.HOURS.toMillis(value);
+                default:
+                    return TimeUnit.SECONDS.toMillis(value);
+            }
+        }
+        return -1; // undefined
+    }
+
     public Set<String> stringFlag(String key) {
         return this.parsedArgs.get(key);
     }
@@ -77,9 +77,8 @@ public class HeapAnalysisModule implements CommandModule {
                             return;
                         }
 
-                        byte[] output = heapDump.formCompressedDataPayload(platform.getPlugin().getPlatformInfo(), sender);
                         try {
-                            String key = SparkPlatform.BYTEBIN_CLIENT.postContent(output, SPARK_HEAP_MEDIA_TYPE, false).key();
+                            String key = SparkPlatform.BYTEBIN_CLIENT.postContent(heapDump.formDataPayload(platform.getPlugin().getPlatformInfo(), sender), SPARK_HEAP_MEDIA_TYPE, false).key();
                             String url = SparkPlatform.VIEWER_URL + key;
 
                             resp.broadcastPrefixed(text("Heap dump summmary output:", GOLD));
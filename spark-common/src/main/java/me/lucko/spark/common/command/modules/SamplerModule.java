@@ -28,26 +28,39 @@ import me.lucko.spark.common.command.CommandModule;
 import me.lucko.spark.common.command.CommandResponseHandler;
 import me.lucko.spark.common.command.tabcomplete.CompletionSupplier;
 import me.lucko.spark.common.command.tabcomplete.TabCompleter;
+import me.lucko.spark.common.sampler.OverflowPolicy;
 import me.lucko.spark.common.sampler.Sampler;
 import me.lucko.spark.common.sampler.SamplerBuilder;
+import me.lucko.spark.common.sampler.SamplerEngine;
+import me.lucko.spark.common.sampler.SamplerMode;
 import me.lucko.spark.common.sampler.ThreadDumper;
 import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.ThreadNodeOrder;
 import me.lucko.spark.common.sampler.node.MergeMode;
 import me.lucko.spark.common.sampler.tick.TickHook;
 import me.lucko.spark.common.util.MethodDisambiguator;
+import me.lucko.spark.common.util.StreamingPayload;
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
 import net.kyori.adventure.text.event.ClickEvent;
 import okhttp3.MediaType;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.PatternSyntaxException;
 
 import static net.kyori.adventure.text.Component.*;
 import static net.kyori.adventure.text.format.NamedTextColor.*;
@@ -61,7 +74,8 @@ public class SamplerModule implements CommandModule {
     @Override
     public void close() {
         if (this.activeSampler != null) {
-            this.activeSampler.cancel();
+            // keep any persistent data, so sampling can be resumed after a restart
+            this.activeSampler.close(false);
             this.activeSampler = null;
         }
     }
@@ -73,18 +87,30 @@ public class SamplerModule implements CommandModule {
                 .argumentUsage("info", null)
                 .argumentUsage("stop", null)
                 .argumentUsage("cancel", null)
+                .argumentUsage("last", "duration")
                 .argumentUsage("timeout", "timeout seconds")
                 .argumentUsage("comment", "comment")
                 .argumentUsage("thread", "thread name")
                 .argumentUsage("regex", null)
+                .argumentUsage("exclude-thread", "thread name regex")
+                .argumentUsage("exclude-jdk-threads", null)
+                .argumentUsage("stack-depth", "max frames")
                 .argumentUsage("combine-all", null)
                 .argumentUsage("not-combined", null)
+                .argumentUsage("group-rule", "thread name regex=group name")
                 .argumentUsage("interval", "interval millis")
+                .argumentUsage("high-resolution", null)
                 .argumentUsage("only-ticks-over", "tick length millis")
                 .argumentUsage("ignore-sleeping", null)
                 .argumentUsage("ignore-native", null)
+                .argumentUsage("thread-states", null)
+                .argumentUsage("persistent", null)
+                .argumentUsage("overflow-policy", "drop|coalesce|slow-down")
+                .argumentUsage("mode", "execution|cpu-time|allocation|contention")
+                .argumentUsage("engine", "java|jfr")
                 .argumentUsage("order-by-time", null)
                 .argumentUsage("separate-parent-calls", null)
+                .argumentUsage("save-to-file", null)
                 .executor((platform, sender, resp, arguments) -> {
                     if (arguments.boolFlag("info")) {
                         if (this.activeSampler == null) {
@@ -100,6 +126,7 @@ public class SamplerModule implements CommandModule {
 
                             long runningTime = (System.currentTimeMillis() - this.activeSampler.getStartTime()) / 1000L;
                             resp.replyPrefixed(text("It has been sampling for " + runningTime + " seconds so far."));
+                            sendOverheadInfo(resp, this.activeSampler.getOverhead());
                         }
                         return;
                     }
@@ -108,7 +135,8 @@ public class SamplerModule implements CommandModule {
                         if (this.activeSampler == null) {
                             resp.replyPrefixed(text("There isn't an active sampling task running."));
                         } else {
-                            close();
+                            this.activeSampler.close(true);
+                            this.activeSampler = null;
                             resp.broadcastPrefixed(text("The active sampling task has been cancelled.", GOLD));
                         }
                         return;
@@ -119,17 +147,36 @@ public class SamplerModule implements CommandModule {
                             resp.replyPrefixed(text("There isn't an active sampling task running."));
                         } else {
                             this.activeSampler.cancel();
-                            resp.broadcastPrefixed(text("The active sampling operation has been stopped! Uploading results..."));
+                            boolean saveToFile = arguments.boolFlag("save-to-file");
+                            resp.broadcastPrefixed(text("The active sampling operation has been stopped! " + (saveToFile ? "Saving" : "Uploading") + " results..."));
                             ThreadNodeOrder threadOrder = arguments.boolFlag("order-by-time") ? ThreadNodeOrder.BY_TIME : ThreadNodeOrder.BY_NAME;
                             String comment = Iterables.getFirst(arguments.stringFlag("comment"), null);
                             MethodDisambiguator methodDisambiguator = new MethodDisambiguator();
                             MergeMode mergeMode = arguments.boolFlag("separate-parent-calls") ? MergeMode.separateParentCalls(methodDisambiguator) : MergeMode.sameMethod(methodDisambiguator);
-                            handleUpload(platform, resp, this.activeSampler, threadOrder, comment, mergeMode);
+                            handleUpload(platform, resp, this.activeSampler, threadOrder, comment, mergeMode, saveToFile);
                             this.activeSampler = null;
                         }
                         return;
                     }
 
+                    long lastDuration = arguments.durationFlag("last");
+                    if (lastDuration != -1) {
+                        Sampler backgroundSampler = platform.getBackgroundSampler();
+                        if (backgroundSampler == null) {
+                            resp.replyPrefixed(text("The background profiler is not running. It can be enabled with -Dspark.backgroundSampler=true", RED));
+                            return;
+                        }
+
+                        boolean saveToFile = arguments.boolFlag("save-to-file");
+                        resp.broadcastPrefixed(text((saveToFile ? "Saving" : "Uploading") + " the results of the background profiler for the last " + (lastDuration / 1000L) + " seconds..."));
+                        ThreadNodeOrder threadOrder = arguments.boolFlag("order-by-time") ? ThreadNodeOrder.BY_TIME : ThreadNodeOrder.BY_NAME;
+                        String comment = Iterables.getFirst(arguments.stringFlag("comment"), null);
+                        MethodDisambiguator methodDisambiguator = new MethodDisambiguator();
+                        MergeMode mergeMode = arguments.boolFlag("separate-parent-calls") ? MergeMode.separateParentCalls(methodDisambiguator) : MergeMode.sameMethod(methodDisambiguator);
+                        handleUpload(platform, resp, () -> backgroundSampler.formDataPayload(platform.getPlugin().getPlatformInfo(), resp.sender(), threadOrder, comment, mergeMode, lastDuration), saveToFile, () -> {});
+                        return;
+                    }
+
                     int timeoutSeconds = arguments.intFlag("timeout");
                     if (timeoutSeconds != -1 && timeoutSeconds <= 10) {
                         resp.replyPrefixed(text("The specified timeout is not long enough for accurate results to be formed. " +
@@ -142,35 +189,126 @@ public class SamplerModule implements CommandModule {
                                 "Consider setting a timeout value over 30 seconds."));
                     }
 
+                    boolean highResolution = arguments.boolFlag("high-resolution");
+                    if (highResolution && !arguments.stringFlag("thread").isEmpty()) {
+                        resp.replyPrefixed(text("The --high-resolution option only samples the server thread, and cannot be used with --thread.", RED));
+                        return;
+                    }
+
                     double intervalMillis = arguments.doubleFlag("interval");
                     if (intervalMillis <= 0) {
-                        intervalMillis = 4;
+                        intervalMillis = highResolution ? 0.5 : 4;
+                    }
+
+                    OverflowPolicy overflowPolicy = OverflowPolicy.SLOW_DOWN;
+                    String overflowPolicyArg = Iterables.getFirst(arguments.stringFlag("overflow-policy"), null);
+                    if (overflowPolicyArg != null) {
+                        try {
+                            overflowPolicy = OverflowPolicy.valueOf(overflowPolicyArg.toUpperCase().replace('-', '_'));
+                        } catch (IllegalArgumentException e) {
+                            resp.replyPrefixed(text("Invalid overflow policy. Please choose one of: drop, coalesce, slow-down.", RED));
+                            return;
+                        }
+                    }
+
+                    SamplerMode mode = SamplerMode.EXECUTION;
+                    String modeArg = Iterables.getFirst(arguments.stringFlag("mode"), null);
+                    if (modeArg != null) {
+                        try {
+                            mode = SamplerMode.valueOf(modeArg.toUpperCase().replace('-', '_'));
+                        } catch (IllegalArgumentException e) {
+                            resp.replyPrefixed(text("Invalid mode. Please choose one of: execution, cpu-time, allocation, contention.", RED));
+                            return;
+                        }
+                    }
+
+                    SamplerEngine engine = SamplerEngine.JAVA;
+                    String engineArg = Iterables.getFirst(arguments.stringFlag("engine"), null);
+                    if (engineArg != null) {
+                        try {
+                            engine = SamplerEngine.valueOf(engineArg.toUpperCase());
+                        } catch (IllegalArgumentException e) {
+                            engine = null;
+                        }
+
+                        if (engine == null) {
+                            resp.replyPrefixed(text("Invalid engine. Please choose one of: java, jfr.", RED));
+                            return;
+                        }
                     }
 
                     boolean ignoreSleeping = arguments.boolFlag("ignore-sleeping");
                     boolean ignoreNative = arguments.boolFlag("ignore-native");
+                    boolean threadStateFrames = arguments.boolFlag("thread-states");
+
+                    int stackDepth = arguments.intFlag("stack-depth");
+                    if (stackDepth == -1) {
+                        stackDepth = ThreadDumper.UNLIMITED_DEPTH;
+                    } else if (stackDepth <= 0) {
+                        resp.replyPrefixed(text("The stack depth must be greater than 0.", RED));
+                        return;
+                    }
 
                     Set<String> threads = arguments.stringFlag("thread");
+                    Set<String> excludedThreads = arguments.stringFlag("exclude-thread");
+                    boolean excludeJdkThreads = arguments.boolFlag("exclude-jdk-threads");
+                    if ((!excludedThreads.isEmpty() || excludeJdkThreads) && !threads.contains("*")) {
+                        resp.replyPrefixed(text("The --exclude-thread and --exclude-jdk-threads options can only be used with '--thread *'.", RED));
+                        return;
+                    }
+
+                    if (stackDepth != ThreadDumper.UNLIMITED_DEPTH && threads.isEmpty()) {
+                        resp.replyPrefixed(text("The --stack-depth option can only be used with --thread.", RED));
+                        return;
+                    }
+
                     ThreadDumper threadDumper;
                     if (threads.isEmpty()) {
                         // use the server thread
                         threadDumper = platform.getPlugin().getDefaultThreadDumper();
                     } else if (threads.contains("*")) {
-                        threadDumper = ThreadDumper.ALL;
+                        if (excludedThreads.isEmpty() && !excludeJdkThreads && stackDepth == ThreadDumper.UNLIMITED_DEPTH) {
+                            threadDumper = ThreadDumper.ALL;
+                        } else {
+                            threadDumper = new ThreadDumper.Filtered(excludedThreads, excludeJdkThreads, stackDepth);
+                        }
                     } else {
                         if (arguments.boolFlag("regex")) {
-                            threadDumper = new ThreadDumper.Regex(threads);
+                            threadDumper = new ThreadDumper.Regex(threads, stackDepth);
                         } else {
                             // specific matches
-                            threadDumper = new ThreadDumper.Specific(threads);
+                            threadDumper = new ThreadDumper.Specific(threads, stackDepth);
                         }
                     }
 
+                    // dumps are taken every fraction of a millisecond, which is only reasonable for a single thread
+                    if (highResolution && !(threadDumper instanceof ThreadDumper.Specific && ((ThreadDumper.Specific) threadDumper).isSingleThread())) {
+                        resp.replyPrefixed(text("The --high-resolution option can only be used on platforms with a server thread.", RED));
+                        return;
+                    }
+
                     ThreadGrouper threadGrouper;
                     if (arguments.boolFlag("combine-all")) {
                         threadGrouper = ThreadGrouper.AS_ONE;
                     } else if (arguments.boolFlag("not-combined")) {
                         threadGrouper = ThreadGrouper.BY_NAME;
+                    } else if (!arguments.stringFlag("group-rule").isEmpty()) {
+                        // rules are in the form '<thread name regex>=<group name>'
+                        Map<String, String> rules = new LinkedHashMap<>();
+                        for (String rule : arguments.stringFlag("group-rule")) {
+                            int separator = rule.lastIndexOf('=');
+                            if (separator <= 0 || separator == rule.length() - 1) {
+                                resp.replyPrefixed(text("Invalid group rule '" + rule + "'. Rules should be in the form <thread name regex>=<group name>.", RED));
+                                return;
+                            }
+                            rules.put(rule.substring(0, separator), rule.substring(separator + 1));
+                        }
+                        try {
+                            threadGrouper = new ThreadGrouper.ByRules(rules);
+                        } catch (PatternSyntaxException e) {
+                            resp.replyPrefixed(text("Invalid group rule pattern: " + e.getMessage(), RED));
+                            return;
+                        }
                     } else {
                         threadGrouper = ThreadGrouper.BY_POOL;
                     }
@@ -185,11 +323,24 @@ public class SamplerModule implements CommandModule {
                         }
                     }
 
+                    Path storageDirectory = null;
+                    if (arguments.boolFlag("persistent")) {
+                        if (ticksOver != -1) {
+                            resp.replyPrefixed(text("The --persistent and --only-ticks-over options cannot be used together.", RED));
+                            return;
+                        }
+                        storageDirectory = platform.getPlugin().getPluginDirectory().resolve("sampler-data");
+                    }
+
                     if (this.activeSampler != null) {
                         resp.replyPrefixed(text("An active sampler is already running."));
                         return;
                     }
 
+                    if (storageDirectory != null && Files.exists(storageDirectory)) {
+                        resp.broadcastPrefixed(text("Resuming the persistent profiler from a previous session."));
+                    }
+
                     resp.broadcastPrefixed(text("Initializing a new profiler, please wait..."));
 
                     SamplerBuilder builder = new SamplerBuilder();
@@ -201,11 +352,30 @@ public class SamplerModule implements CommandModule {
                     builder.samplingInterval(intervalMillis);
                     builder.ignoreSleeping(ignoreSleeping);
                     builder.ignoreNative(ignoreNative);
+                    builder.threadStateFrames(threadStateFrames);
+                    builder.overflowPolicy(overflowPolicy);
+                    builder.mode(mode);
+                    builder.engine(engine);
+                    builder.highResolution(highResolution);
                     if (ticksOver != -1) {
-                        builder.ticksOver(ticksOver, tickHook);
+                        builder.ticksOver(ticksOver, tickHook, platform.getTickReporter());
+                    }
+                    if (storageDirectory != null) {
+                        builder.storageDirectory(storageDirectory);
+                    }
+
+                    Sampler sampler;
+                    try {
+                        sampler = this.activeSampler = builder.start();
+                    } catch (RuntimeException e) {
+                        resp.broadcastPrefixed(text("Unable to start the profiler. Error: " + e.toString(), RED));
+                        e.printStackTrace();
+                        return;
                     }
-                    Sampler sampler = this.activeSampler = builder.start();
 
+                    if (sampler.getEngine() != engine) {
+                        resp.broadcastPrefixed(text("Unable to use the " + engine.name().toLowerCase() + " engine (" + sampler.getEngineFallbackReason() + "), falling back to the " + sampler.getEngine().name().toLowerCase() + " engine.", RED));
+                    }
                     resp.broadcastPrefixed(text("Profiler now active!", GOLD));
                     if (timeoutSeconds == -1) {
                         resp.broadcastPrefixed(text("Use '/" + platform.getPlugin().getCommandName() + " profiler --stop' to stop profiling and upload the results."));
@@ -236,9 +406,10 @@ public class SamplerModule implements CommandModule {
                         String comment = Iterables.getFirst(arguments.stringFlag("comment"), null);
                         MethodDisambiguator methodDisambiguator = new MethodDisambiguator();
                         MergeMode mergeMode = arguments.boolFlag("separate-parent-calls") ? MergeMode.separateParentCalls(methodDisambiguator) : MergeMode.sameMethod(methodDisambiguator);
+                        boolean saveToFile = arguments.boolFlag("save-to-file");
                         future.thenAcceptAsync(s -> {
-                            resp.broadcastPrefixed(text("The active sampling operation has completed! Uploading results..."));
-                            handleUpload(platform, resp, s, threadOrder, comment, mergeMode);
+                            resp.broadcastPrefixed(text("The active sampling operation has completed! " + (saveToFile ? "Saving" : "Uploading") + " results..."));
+                            handleUpload(platform, resp, s, threadOrder, comment, mergeMode, saveToFile);
                         });
                     }
                 })
@@ -247,14 +418,14 @@ public class SamplerModule implements CommandModule {
                         return Collections.emptyList();
                     }
 
-                    if (arguments.contains("--stop") || arguments.contains("--upload")) {
-                        return TabCompleter.completeForOpts(arguments, "--order-by-time", "--separate-parent-calls", "--comment");
+                    if (arguments.contains("--stop") || arguments.contains("--upload") || arguments.contains("--last")) {
+                        return TabCompleter.completeForOpts(arguments, "--order-by-time", "--separate-parent-calls", "--comment", "--save-to-file");
                     }
 
-                    List<String> opts = new ArrayList<>(Arrays.asList("--info", "--stop", "--cancel",
-                            "--timeout", "--regex", "--combine-all", "--not-combined", "--interval",
-                            "--only-ticks-over", "--ignore-sleeping", "--ignore-native", "--order-by-time",
-                            "--separate-parent-calls", "--comment"));
+                    List<String> opts = new ArrayList<>(Arrays.asList("--info", "--stop", "--cancel", "--last",
+                            "--timeout", "--regex", "--exclude-thread", "--exclude-jdk-threads", "--stack-depth", "--combine-all", "--not-combined", "--group-rule", "--interval", "--high-resolution",
+                            "--only-ticks-over", "--ignore-sleeping", "--ignore-native", "--thread-states", "--persistent", "--overflow-policy", "--mode", "--engine", "--order-by-time",
+                            "--separate-parent-calls", "--comment", "--save-to-file"));
                     opts.removeAll(arguments);
                     opts.add("--thread"); // allowed multiple times
 
@@ -266,26 +437,72 @@ public class SamplerModule implements CommandModule {
         );
     }
 
-    private void handleUpload(SparkPlatform platform, CommandResponseHandler resp, Sampler sampler, ThreadNodeOrder threadOrder, String comment, MergeMode mergeMode) {
+    private static void sendOverheadInfo(CommandResponseHandler resp, SamplerMetadata.SamplerOverhead overhead) {
+        resp.replyPrefixed(text("Sampler overhead:", GOLD));
+        resp.reply(text(String.format("Interval: %.2fms achieved, %.2fms requested", overhead.getAchievedInterval() / 1000d, overhead.getRequestedInterval() / 1000d), GRAY));
+        resp.reply(text(String.format("Thread dumps: %.2fms avg, %.2fms max", overhead.getDumpTimeAvg() / 1000d, overhead.getDumpTimeMax() / 1000d), GRAY));
+        resp.reply(text(String.format("Insert queue lag: %.2fms avg, %.2fms max", overhead.getQueueLagAvg() / 1000d, overhead.getQueueLagMax() / 1000d), GRAY));
+        resp.reply(text(String.format("Worker CPU time: %.0fms total, %.1fus per sample", overhead.getWorkerCpuTime(), overhead.getCpuTimePerSample()), GRAY));
+        resp.reply(text(String.format("Allocated: %.1fKB per sample", overhead.getAllocatedBytesPerSample() / 1024d), GRAY));
+    }
+
+    private void handleUpload(SparkPlatform platform, CommandResponseHandler resp, Sampler sampler, ThreadNodeOrder threadOrder, String comment, MergeMode mergeMode, boolean saveToFile) {
+        handleUpload(platform, resp, () -> sampler.formDataPayload(platform.getPlugin().getPlatformInfo(), resp.sender(), threadOrder, comment, mergeMode), saveToFile, () -> sampler.close(true));
+    }
+
+    private void handleUpload(SparkPlatform platform, CommandResponseHandler resp, Supplier<StreamingPayload> payload, boolean saveToFile, Runnable whenComplete) {
         platform.getPlugin().executeAsync(() -> {
-            byte[] output = sampler.formCompressedDataPayload(platform.getPlugin().getPlatformInfo(), resp.sender(), threadOrder, comment, mergeMode);
             try {
-                String key = SparkPlatform.BYTEBIN_CLIENT.postContent(output, SPARK_SAMPLER_MEDIA_TYPE, false).key();
-                String url = SparkPlatform.VIEWER_URL + key;
-
-                resp.broadcastPrefixed(text("Sampling results:", GOLD));
-                resp.broadcast(text()
-                        .content(url)
-                        .color(GRAY)
-                        .clickEvent(ClickEvent.openUrl(url))
-                        .build()
-                );
-
-                platform.getActivityLog().addToLog(Activity.urlActivity(resp.sender(), System.currentTimeMillis(), "Sampler", url));
-            } catch (IOException e) {
-                resp.broadcastPrefixed(text("An error occurred whilst uploading the results.", RED));
-                e.printStackTrace();
+                if (saveToFile) {
+                    saveToFile(platform, resp, payload.get());
+                } else {
+                    upload(platform, resp, payload.get());
+                }
+            } finally {
+                // the payload is written lazily, so the sampler can only be closed once it's done
+                whenComplete.run();
             }
         });
     }
+
+    private void upload(SparkPlatform platform, CommandResponseHandler resp, StreamingPayload payload) {
+        try {
+            String key = SparkPlatform.BYTEBIN_CLIENT.postContent(payload, SPARK_SAMPLER_MEDIA_TYPE, false).key();
+            String url = SparkPlatform.VIEWER_URL + key;
+
+            resp.broadcastPrefixed(text("Sampling results:", GOLD));
+            resp.broadcast(text()
+                    .content(url)
+                    .color(GRAY)
+                    .clickEvent(ClickEvent.openUrl(url))
+                    .build()
+            );
+
+            platform.getActivityLog().addToLog(Activity.urlActivity(resp.sender(), System.currentTimeMillis(), "Sampler", url));
+        } catch (IOException e) {
+            resp.broadcastPrefixed(text("An error occurred whilst uploading the results.", RED));
+            e.printStackTrace();
+        }
+    }
+
+    private void saveToFile(SparkPlatform platform, CommandResponseHandler resp, StreamingPayload payload) {
+        Path pluginFolder = platform.getPlugin().getPluginDirectory();
+        Path file = pluginFolder.resolve("profile-" + DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss").format(LocalDateTime.now()) + ".sparkprofile");
+        try {
+            Files.createDirectories(pluginFolder);
+            payload.writeCompressed(file);
+
+            resp.broadcastPrefixed(text()
+                    .content("Sampling results written to: ")
+                    .color(GOLD)
+                    .append(text(file.toString(), GRAY))
+                    .build()
+            );
+
+            platform.getActivityLog().addToLog(Activity.fileActivity(resp.sender(), System.currentTimeMillis(), "Sampler", file.toString()));
+        } catch (IOException e) {
+            resp.broadcastPrefixed(text("An error occurred whilst saving the results.", RED));
+            e.printStackTrace();
+        }
+    }
 }
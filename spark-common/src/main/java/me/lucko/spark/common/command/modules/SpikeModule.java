@@ -0,0 +1,230 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.command.modules;
+
+import com.google.common.collect.Iterables;
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.activitylog.ActivityLog.Activity;
+import me.lucko.spark.common.command.Command;
+import me.lucko.spark.common.command.CommandModule;
+import me.lucko.spark.common.command.CommandResponseHandler;
+import me.lucko.spark.common.command.tabcomplete.TabCompleter;
+import me.lucko.spark.common.sampler.Sampler;
+import me.lucko.spark.common.sampler.SamplerBuilder;
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.ThreadNodeOrder;
+import me.lucko.spark.common.sampler.aggregator.SpikeDataAggregator.SpikeRecord;
+import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.sampler.tick.TickHook;
+import me.lucko.spark.common.sampler.tick.TickReporter;
+import me.lucko.spark.common.util.MethodDisambiguator;
+import me.lucko.spark.common.util.StreamingPayload;
+import net.kyori.adventure.text.event.ClickEvent;
+import okhttp3.MediaType;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static net.kyori.adventure.text.Component.*;
+import static net.kyori.adventure.text.format.NamedTextColor.*;
+
+public class SpikeModule implements CommandModule {
+    private static final MediaType SPARK_SAMPLER_MEDIA_TYPE = MediaType.parse("application/x-spark-sampler");
+
+    /** The spike recording sampler, if any. Retained after it is stopped so the records can still be viewed */
+    private Sampler spikeSampler = null;
+    private boolean recording = false;
+
+    @Override
+    public void close() {
+        if (this.recording) {
+            this.spikeSampler.close(true);
+            this.recording = false;
+        }
+    }
+
+    @Override
+    public void registerCommands(Consumer<Command> consumer) {
+        consumer.accept(Command.builder()
+                .aliases("spikes", "spikerecorder")
+                .argumentUsage("start", null)
+                .argumentUsage("threshold", "tick length millis")
+                .argumentUsage("interval", "interval millis")
+                .argumentUsage("stop", null)
+                .argumentUsage("list", null)
+                .argumentUsage("info", "id")
+                .argumentUsage("upload", "id")
+                .executor((platform, sender, resp, arguments) -> {
+                    if (arguments.boolFlag("start")) {
+                        TickHook tickHook = platform.getTickHook();
+                        TickReporter tickReporter = platform.getTickReporter();
+                        if (tickHook == null || tickReporter == null) {
+                            resp.replyPrefixed(text("Tick duration reporting is not supported!", RED));
+                            return;
+                        }
+
+                        if (this.recording) {
+                            resp.replyPrefixed(text("The spike recorder is already running."));
+                            return;
+                        }
+
+                        int threshold = arguments.intFlag("threshold");
+                        if (threshold == -1) {
+                            threshold = 100;
+                        }
+
+                        double intervalMillis = arguments.doubleFlag("interval");
+                        if (intervalMillis <= 0) {
+                            intervalMillis = 4;
+                        }
+
+                        this.spikeSampler = new SamplerBuilder()
+                                .threadDumper(platform.getPlugin().getDefaultThreadDumper())
+                                .threadGrouper(ThreadGrouper.BY_POOL)
+                                .samplingInterval(intervalMillis)
+                                .recordSpikes(threshold, tickHook, tickReporter)
+                                .start();
+                        this.recording = true;
+
+                        resp.broadcastPrefixed(text("Spike recorder now active! Ticks longer than " + threshold + "ms will be recorded.", GOLD));
+                        resp.broadcastPrefixed(text("Use '/" + platform.getPlugin().getCommandName() + " spikes --list' to view the recorded spikes."));
+                        return;
+                    }
+
+                    if (arguments.boolFlag("stop")) {
+                        if (!this.recording) {
+                            resp.replyPrefixed(text("The spike recorder isn't running."));
+                        } else {
+                            close();
+                            resp.broadcastPrefixed(text("The spike recorder has been stopped. Previously recorded spikes can still be viewed.", GOLD));
+                        }
+                        return;
+                    }
+
+                    if (this.spikeSampler == null) {
+                        resp.replyPrefixed(text("The spike recorder hasn't been started. Use '/" + platform.getPlugin().getCommandName() + " spikes --start' to start it."));
+                        return;
+                    }
+
+                    if (arguments.boolFlag("info") || arguments.boolFlag("upload")) {
+                        int id = arguments.intFlag(arguments.boolFlag("info") ? "info" : "upload");
+                        SpikeRecord record = id == -1 ? null : this.spikeSampler.getSpikeRecord(id);
+                        if (record == null) {
+                            resp.replyPrefixed(text("Unknown spike id. Use '/" + platform.getPlugin().getCommandName() + " spikes --list' to view the recorded spikes.", RED));
+                            return;
+                        }
+
+                        if (arguments.boolFlag("info")) {
+                            sendInfo(resp, record);
+                        } else {
+                            ThreadNodeOrder threadOrder = arguments.boolFlag("order-by-time") ? ThreadNodeOrder.BY_TIME : ThreadNodeOrder.BY_NAME;
+                            String comment = Iterables.getFirst(arguments.stringFlag("comment"), null);
+                            MethodDisambiguator methodDisambiguator = new MethodDisambiguator();
+                            MergeMode mergeMode = arguments.boolFlag("separate-parent-calls") ? MergeMode.separateParentCalls(methodDisambiguator) : MergeMode.sameMethod(methodDisambiguator);
+                            resp.broadcastPrefixed(text("Uploading spike #" + record.getId() + "..."));
+                            handleUpload(platform, resp, this.spikeSampler, record, threadOrder, comment, mergeMode);
+                        }
+                        return;
+                    }
+
+                    // list by default
+                    List<SpikeRecord> records = this.spikeSampler.getSpikeRecords();
+                    if (records.isEmpty()) {
+                        resp.replyPrefixed(text("No spikes have been recorded yet."));
+                        return;
+                    }
+
+                    resp.replyPrefixed(text("Recorded spikes:", GOLD));
+                    for (SpikeRecord record : records) {
+                        String infoCommand = "/" + platform.getPlugin().getCommandName() + " spikes --info " + record.getId();
+                        resp.reply(text()
+                                .append(text("#" + record.getId(), WHITE))
+                                .append(text(" - ", DARK_GRAY))
+                                .append(text(String.format("%.1fms", record.getDuration()), RED))
+                                .append(text(", " + formatAge(record.getTime()) + " ago", GRAY))
+                                .clickEvent(ClickEvent.runCommand(infoCommand))
+                                .build()
+                        );
+                    }
+                })
+                .tabCompleter((platform, sender, arguments) -> TabCompleter.completeForOpts(arguments, "--start", "--threshold", "--interval", "--stop", "--list", "--info", "--upload", "--order-by-time", "--separate-parent-calls", "--comment"))
+                .build()
+        );
+    }
+
+    private static void sendInfo(CommandResponseHandler resp, SpikeRecord record) {
+        resp.replyPrefixed(text()
+                .append(text("Spike #" + record.getId() + ": ", GOLD))
+                .append(text(String.format("%.1fms", record.getDuration()), RED))
+                .append(text(", " + formatAge(record.getTime()) + " ago", GRAY))
+                .build()
+        );
+        resp.reply(text(record.getSpikeSampleCount() + " samples during the spike, " + (record.getTickCount() - 1) + " preceding ticks recorded.", GRAY));
+
+        List<String> topFrames = record.getTopFrames();
+        if (!topFrames.isEmpty()) {
+            resp.reply(text("Most sampled frames:", GOLD));
+            for (String frame : topFrames) {
+                resp.reply(text()
+                        .append(text("> ", DARK_GRAY))
+                        .append(text(frame, WHITE))
+                        .build()
+                );
+            }
+        }
+    }
+
+    private static String formatAge(long time) {
+        long seconds = (System.currentTimeMillis() - time) / 1000L;
+        if (seconds < 120) {
+            return seconds + "s";
+        }
+        long minutes = seconds / 60;
+        if (minutes < 120) {
+            return minutes + "m";
+        }
+        return (minutes / 60) + "h";
+    }
+
+    private void handleUpload(SparkPlatform platform, CommandResponseHandler resp, Sampler sampler, SpikeRecord record, ThreadNodeOrder threadOrder, String comment, MergeMode mergeMode) {
+        platform.getPlugin().executeAsync(() -> {
+            try {
+                StreamingPayload payload = sampler.formDataPayload(platform.getPlugin().getPlatformInfo(), resp.sender(), threadOrder, comment, mergeMode, record);
+                String key = SparkPlatform.BYTEBIN_CLIENT.postContent(payload, SPARK_SAMPLER_MEDIA_TYPE, false).key();
+                String url = SparkPlatform.VIEWER_URL + key;
+
+                resp.broadcastPrefixed(text("Spike #" + record.getId() + " results:", GOLD));
+                resp.broadcast(text()
+                        .content(url)
+                        .color(GRAY)
+                        .clickEvent(ClickEvent.openUrl(url))
+                        .build()
+                );
+
+                platform.getActivityLog().addToLog(Activity.urlActivity(resp.sender(), System.currentTimeMillis(), "Spike", url));
+            } catch (IOException e) {
+                resp.broadcastPrefixed(text("An error occurred whilst uploading the results.", RED));
+                e.printStackTrace();
+            }
+        });
+    }
+}
@@ -22,14 +22,12 @@ package me.lucko.spark.common.heapdump;
 
 import me.lucko.spark.common.command.sender.CommandSender;
 import me.lucko.spark.common.platform.PlatformInfo;
+import me.lucko.spark.common.util.StreamingPayload;
 import me.lucko.spark.proto.SparkProtos;
 import me.lucko.spark.proto.SparkProtos.HeapData;
 import me.lucko.spark.proto.SparkProtos.HeapEntry;
 import org.objectweb.asm.Type;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.List;
@@ -37,7 +35,6 @@ import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPOutputStream;
 
 import javax.management.JMX;
 import javax.management.MBeanServer;
@@ -128,29 +125,24 @@ public final class HeapDumpSummary {
         this.entries = entries;
     }
 
-    private HeapData toProto(PlatformInfo platformInfo, CommandSender creator) {
-        HeapData.Builder proto = HeapData.newBuilder();
-        proto.setMetadata(SparkProtos.HeapMetadata.newBuilder()
+    /**
+     * Forms a payload containing the heap dump summary. The entries are serialized as
+     * the payload is written.
+     *
+     * @return the payload
+     */
+    public StreamingPayload formDataPayload(PlatformInfo platformInfo, CommandSender creator) {
+        SparkProtos.HeapMetadata metadata = SparkProtos.HeapMetadata.newBuilder()
                 .setPlatform(platformInfo.toData().toProto())
                 .setUser(creator.toData().toProto())
-                .build()
-        );
-
-        for (Entry entry : this.entries) {
-            proto.addEntries(entry.toProto());
-        }
-
-        return proto.build();
-    }
-
-    public byte[] formCompressedDataPayload(PlatformInfo platformInfo, CommandSender creator) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        try (OutputStream out = new GZIPOutputStream(byteOut)) {
-            toProto(platformInfo, creator).writeTo(out);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        return byteOut.toByteArray();
+                .build();
+
+        return out -> {
+            out.writeMessage(HeapData.METADATA_FIELD_NUMBER, metadata);
+            for (Entry entry : this.entries) {
+                out.writeMessage(HeapData.ENTRIES_FIELD_NUMBER, entry.toProto());
+            }
+        };
     }
 
     public static final class Entry {
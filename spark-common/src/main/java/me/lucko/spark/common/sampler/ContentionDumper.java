@@ -0,0 +1,124 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dumps the threads selected by a {@link ThreadDumper}, together with the threads which own
+ * the locks they are waiting on.
+ *
+ * <p>Every thread is dumped in a single call, including the monitors and synchronizers each
+ * thread holds, so the stack of each owner is captured at the same moment as the waiting
+ * thread's - whilst it still holds the lock.</p>
+ */
+final class ContentionDumper {
+
+    /** {@code ThreadMXBean#dumpAllThreads(boolean, boolean, int)}, added in Java 10 - null if unavailable */
+    private static final Method DUMP_ALL_THREADS_WITH_DEPTH = getDumpAllThreadsWithDepth();
+
+    private static Method getDumpAllThreadsWithDepth() {
+        try {
+            return ThreadMXBean.class.getMethod("dumpAllThreads", boolean.class, boolean.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /** The dumper which selects the sampled threads */
+    private final ThreadDumper threadDumper;
+
+    ContentionDumper(ThreadDumper threadDumper) {
+        this.threadDumper = threadDumper;
+    }
+
+    /**
+     * Dumps the sampled threads and the owners of the locks they are waiting on.
+     *
+     * <p>The stacks are limited to the {@link ThreadDumper#getMaxDepth() max depth} of the
+     * thread dumper, except on Java 8, where the depth of a dump which includes locks can't
+     * be limited.</p>
+     *
+     * @param threadBean the thread bean
+     * @return the dump
+     */
+    Dump dump(ThreadMXBean threadBean) {
+        ThreadInfo[] allThreads = dumpAllThreads(threadBean, this.threadDumper.getMaxDepth());
+
+        Map<Long, ThreadInfo> unsampled = new HashMap<>();
+        List<ThreadInfo> threads = new ArrayList<>();
+        for (ThreadInfo threadInfo : allThreads) {
+            if (threadInfo == null) {
+                continue;
+            }
+            if (this.threadDumper.isThreadIncluded(threadInfo.getThreadId(), threadInfo.getThreadName())) {
+                threads.add(threadInfo);
+            } else {
+                unsampled.put(threadInfo.getThreadId(), threadInfo);
+            }
+        }
+
+        List<ThreadInfo> lockOwners = new ArrayList<>();
+        for (ThreadInfo threadInfo : threads) {
+            ThreadInfo owner = unsampled.remove(threadInfo.getLockOwnerId());
+            if (owner != null) {
+                lockOwners.add(owner);
+            }
+        }
+
+        return new Dump(threads.toArray(new ThreadInfo[0]), lockOwners.toArray(new ThreadInfo[0]));
+    }
+
+    private static ThreadInfo[] dumpAllThreads(ThreadMXBean threadBean, int maxDepth) {
+        if (DUMP_ALL_THREADS_WITH_DEPTH != null && maxDepth != ThreadDumper.UNLIMITED_DEPTH) {
+            try {
+                return (ThreadInfo[]) DUMP_ALL_THREADS_WITH_DEPTH.invoke(threadBean, true, true, maxDepth);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return threadBean.dumpAllThreads(true, true);
+    }
+
+    /**
+     * The threads captured by a single dump.
+     */
+    static final class Dump {
+        /** The sampled threads */
+        final ThreadInfo[] threads;
+        /** The threads which own a lock being waited on by a sampled thread, but aren't sampled themselves */
+        final ThreadInfo[] lockOwners;
+
+        Dump(ThreadInfo[] threads, ThreadInfo[] lockOwners) {
+            this.threads = threads;
+            this.lockOwners = lockOwners;
+        }
+    }
+}
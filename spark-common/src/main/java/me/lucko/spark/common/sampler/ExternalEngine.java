@@ -0,0 +1,51 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+
+/**
+ * A sampling engine which captures samples itself, instead of the sampler taking thread dumps.
+ *
+ * <p>Samples are inserted into the {@link DataAggregator} using
+ * {@link DataAggregator#insertData(long, String, StackTraceElement[], long, long)}.</p>
+ */
+public interface ExternalEngine {
+
+    /**
+     * Starts capturing samples.
+     *
+     * @param dataAggregator the aggregator to insert samples into
+     */
+    void start(DataAggregator dataAggregator);
+
+    /**
+     * Inserts the samples captured since the last poll.
+     *
+     * <p>Called periodically by the sampler.</p>
+     */
+    void poll();
+
+    /**
+     * Stops capturing samples, inserting any which haven't been inserted yet.
+     */
+    void stop();
+
+}
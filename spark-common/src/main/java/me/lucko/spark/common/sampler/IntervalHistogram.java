@@ -0,0 +1,71 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+/**
+ * A histogram of the intervals actually achieved between thread dumps.
+ *
+ * <p>Buckets are relative to the requested interval, so the jitter of samplers with different
+ * intervals can be compared.</p>
+ */
+final class IntervalHistogram {
+
+    /** The upper bound of each bucket, as a multiple of the requested interval */
+    private static final double[] BOUNDS = {0.5, 0.9, 1.1, 1.5, 2, 5, 10, Double.POSITIVE_INFINITY};
+
+    /** The requested interval, in microseconds */
+    private final int interval;
+
+    // guarded by 'this'
+    private final long[] counts = new long[BOUNDS.length];
+
+    IntervalHistogram(int interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Records an achieved interval.
+     *
+     * @param time the time between two dumps, in microseconds
+     */
+    synchronized void record(long time) {
+        double ratio = (double) time / this.interval;
+        int bucket = 0;
+        while (ratio > BOUNDS[bucket]) {
+            bucket++;
+        }
+        this.counts[bucket]++;
+    }
+
+    synchronized SamplerMetadata.IntervalHistogram toProto() {
+        SamplerMetadata.IntervalHistogram.Builder proto = SamplerMetadata.IntervalHistogram.newBuilder();
+        for (int i = 0; i < BOUNDS.length; i++) {
+            proto.addBuckets(SamplerMetadata.IntervalHistogram.Bucket.newBuilder()
+                    .setUpperBound(BOUNDS[i] * this.interval)
+                    .setCount(this.counts[i])
+                    .build()
+            );
+        }
+        return proto.build();
+    }
+}
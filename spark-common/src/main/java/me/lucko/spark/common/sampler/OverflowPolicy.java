@@ -0,0 +1,55 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+/**
+ * What the sampler should do when thread dumps are captured faster than they can be inserted.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Discard new dumps until there is space in the buffer
+     */
+    DROP(SamplerMetadata.SamplingStatistics.OverflowPolicy.DROP),
+
+    /**
+     * Replace the most recently buffered dump with the new one, carrying over the time it represented.
+     * Dumps captured during different ticks aren't coalesced, the new dump is discarded instead
+     */
+    COALESCE(SamplerMetadata.SamplingStatistics.OverflowPolicy.COALESCE),
+
+    /**
+     * Skip taking new dumps until there is space in the buffer, effectively reducing the sampling rate
+     */
+    SLOW_DOWN(SamplerMetadata.SamplingStatistics.OverflowPolicy.SLOW_DOWN);
+
+    private final SamplerMetadata.SamplingStatistics.OverflowPolicy proto;
+
+    OverflowPolicy(SamplerMetadata.SamplingStatistics.OverflowPolicy proto) {
+        this.proto = proto;
+    }
+
+    public SamplerMetadata.SamplingStatistics.OverflowPolicy asProto() {
+        return this.proto;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task at precise intervals, on a thread dedicated to the timer.
+ *
+ * <p>Used for high resolution sampling, where the jitter of a shared
+ * {@link java.util.concurrent.ScheduledExecutorService} would be a large fraction of the
+ * interval.</p>
+ */
+final class PrecisionTimer implements Runnable {
+
+    /** Deadlines closer than this are waited for by spinning rather than parking, in nanoseconds */
+    private static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Runnable task;
+    private final long interval;
+    private volatile Thread thread;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new timer.
+     *
+     * @param task the task
+     * @param interval the interval between each run of the task, in nanoseconds
+     */
+    PrecisionTimer(Runnable task, long interval) {
+        this.task = task;
+        this.interval = interval;
+    }
+
+    @Override
+    public void run() {
+        this.thread = Thread.currentThread();
+
+        long deadline = System.nanoTime();
+        while (!this.cancelled) {
+            this.task.run();
+
+            deadline += this.interval;
+            long now = System.nanoTime();
+            if (now - deadline > this.interval) {
+                // more than an interval behind (e.g. after a gc pause) - skip the missed runs
+                // instead of catching up with a burst. the sampler weights each dump by the time
+                // which actually passed, so the skipped time is still accounted for
+                deadline = now;
+            }
+
+            long remaining;
+            while (!this.cancelled && (remaining = deadline - System.nanoTime()) > 0) {
+                if (remaining > SPIN_THRESHOLD) {
+                    LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the timer. A run of the task which is in progress is not interrupted.
+     */
+    void cancel() {
+        this.cancelled = true;
+        Thread thread = this.thread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
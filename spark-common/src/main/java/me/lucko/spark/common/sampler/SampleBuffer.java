@@ -0,0 +1,286 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A bounded ring buffer of thread dumps waiting to be inserted into a {@link DataAggregator}.
+ *
+ * <p>Dumps are taken from the buffer in the order they were captured, and inserted by up to
+ * {@code drainers} workers at once, so the aggregator's shards can be filled in parallel. If dumps
+ * are captured faster than they can be inserted, the buffer fills up and the {@link OverflowPolicy}
+ * is applied, so the memory held by pending dumps is bounded.</p>
+ */
+final class SampleBuffer implements Runnable {
+    static final int DEFAULT_CAPACITY = 64;
+
+    /** The executor used to drain the buffer */
+    private final Executor executor;
+
+    /** The aggregator to insert dumps into */
+    private final DataAggregator dataAggregator;
+
+    /** Converts the counter values captured with each dump into weights, may be null */
+    private final ThreadCounter threadCounter;
+
+    /** Records the time dumps spend waiting in the buffer */
+    private final SamplerOverhead overhead;
+
+    /** What to do when the buffer is full */
+    private final OverflowPolicy overflowPolicy;
+
+    /** The maximum number of workers which may drain the buffer at once */
+    private final int maxDrainers;
+
+    // the ring, guarded by 'this'
+    private final ThreadInfo[][] dumps;
+    private final long[] captureTimes;
+    private final long[] times;
+    private final long[] capturedAt;
+    private final int[] ticks;
+    private final long[][] counterValues;
+    private int head = 0;
+    private int size = 0;
+
+    // guarded by 'this'
+    /** The number of drains scheduled or running */
+    private int drainers = 0;
+    /** If the buffer has been {@link #complete() completed}, no further drains are scheduled */
+    private boolean completed = false;
+
+    // guarded by 'this'
+    private long captured = 0;
+    private long dropped = 0;
+    private long coalesced = 0;
+    private long skipped = 0;
+
+    SampleBuffer(Executor executor, DataAggregator dataAggregator, ThreadCounter threadCounter, SamplerOverhead overhead, OverflowPolicy overflowPolicy, int capacity, int maxDrainers) {
+        this.executor = executor;
+        this.maxDrainers = maxDrainers;
+        this.dataAggregator = dataAggregator;
+        this.threadCounter = threadCounter;
+        this.overhead = overhead;
+        this.overflowPolicy = overflowPolicy;
+        this.dumps = new ThreadInfo[capacity][];
+        this.captureTimes = new long[capacity];
+        this.times = new long[capacity];
+        this.capturedAt = new long[capacity];
+        this.ticks = new int[capacity];
+        this.counterValues = new long[capacity][];
+    }
+
+    /**
+     * Checks if a new dump should be captured.
+     *
+     * <p>If the {@link OverflowPolicy#SLOW_DOWN} policy is in use and the buffer is full,
+     * the capture is skipped. The time it would have represented is included in the next
+     * dump, as dumps are weighted by the time since the previous capture.</p>
+     *
+     * @return true if a dump should be captured
+     */
+    synchronized boolean shouldCapture() {
+        if (this.overflowPolicy == OverflowPolicy.SLOW_DOWN && this.size == this.dumps.length) {
+            this.skipped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a dump to the buffer, scheduling a drain if necessary.
+     *
+     * @param dump the thread dump
+     * @param captureTime the time the dump was captured, in milliseconds since the epoch
+     * @param time the time the dump represents, in microseconds
+     * @param counterValues the {@link ThreadCounter} values read for the dump, or null
+     * @param tick the tick the dump was captured during, or {@link DataAggregator#UNKNOWN_TICK}
+     */
+    void offer(ThreadInfo[] dump, long captureTime, long time, long[] counterValues, int tick) {
+        long now = System.nanoTime();
+        boolean schedule;
+        synchronized (this) {
+            this.captured++;
+
+            int capacity = this.dumps.length;
+            if (this.size != capacity) {
+                int index = (this.head + this.size) % capacity;
+                this.dumps[index] = dump;
+                this.captureTimes[index] = captureTime;
+                this.times[index] = time;
+                this.capturedAt[index] = now;
+                this.ticks[index] = tick;
+                this.counterValues[index] = counterValues;
+                this.size++;
+            } else if (this.overflowPolicy == OverflowPolicy.DROP || this.ticks[(this.head + this.size - 1) % capacity] != tick) {
+                // dumps from different ticks are never coalesced, as the time
+                // would be attributed to the wrong tick
+                this.dropped++;
+            } else {
+                // replace the newest dump, it represents the time of both
+                int index = (this.head + this.size - 1) % capacity;
+                this.dumps[index] = dump;
+                this.captureTimes[index] = captureTime;
+                this.times[index] += time;
+                this.capturedAt[index] = now;
+                this.counterValues[index] = counterValues;
+                this.coalesced++;
+            }
+
+            schedule = !this.completed && this.drainers < this.maxDrainers;
+            if (schedule) {
+                this.drainers++;
+            }
+        }
+
+        if (schedule) {
+            try {
+                this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the executor has been shutdown - the data will be drained by complete()
+                finishDrain();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            Entry entry;
+            while ((entry = poll(true)) != null) {
+                insert(entry);
+            }
+        } catch (Throwable t) {
+            finishDrain();
+            throw t;
+        }
+    }
+
+    /**
+     * Waits for any running drains to finish, then inserts the remaining dumps on the calling thread.
+     *
+     * <p>No further drains are scheduled afterwards.</p>
+     */
+    void complete() {
+        synchronized (this) {
+            this.completed = true;
+            try {
+                while (this.drainers != 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                // insert what we can, the remaining drains are still thread safe
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Entry entry;
+        while ((entry = poll(false)) != null) {
+            insert(entry);
+        }
+    }
+
+    /**
+     * Takes the oldest dump from the buffer.
+     *
+     * <p>The counter values are converted into weights whilst holding the lock, as they must be
+     * converted in the order the dumps were captured.</p>
+     *
+     * @param drainer if the caller is a scheduled drain, which finishes if the buffer is empty
+     * @return the dump, or null if the buffer is empty
+     */
+    private synchronized Entry poll(boolean drainer) {
+        if (this.size == 0) {
+            if (drainer) {
+                finishDrain();
+            }
+            return null;
+        }
+
+        int index = this.head;
+        ThreadInfo[] dump = this.dumps[index];
+        long[] weights = null;
+        if (this.threadCounter != null) {
+            try {
+                weights = this.threadCounter.toWeights(dump, this.counterValues[index]);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        Entry entry = new Entry(dump, this.captureTimes[index], this.times[index], weights, this.capturedAt[index], this.ticks[index]);
+
+        this.dumps[index] = null;
+        this.counterValues[index] = null;
+        this.head = (index + 1) % this.dumps.length;
+        this.size--;
+        return entry;
+    }
+
+    private synchronized void finishDrain() {
+        if (--this.drainers == 0) {
+            notifyAll();
+        }
+    }
+
+    private void insert(Entry entry) {
+        this.overhead.recordInsert(entry.capturedAt);
+        try {
+            this.dataAggregator.insertData(entry.dump, entry.captureTime, entry.time, entry.weights, entry.tick);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A dump taken from the buffer to be inserted.
+     */
+    private static final class Entry {
+        private final ThreadInfo[] dump;
+        private final long captureTime;
+        private final long time;
+        private final long[] weights;
+        private final long capturedAt;
+        private final int tick;
+
+        Entry(ThreadInfo[] dump, long captureTime, long time, long[] weights, long capturedAt, int tick) {
+            this.dump = dump;
+            this.captureTime = captureTime;
+            this.time = time;
+            this.weights = weights;
+            this.capturedAt = capturedAt;
+            this.tick = tick;
+        }
+    }
+
+    synchronized SamplerMetadata.SamplingStatistics.Builder toProto() {
+        return SamplerMetadata.SamplingStatistics.newBuilder()
+                .setOverflowPolicy(this.overflowPolicy.asProto())
+                .setCapturedSamples(this.captured)
+                .setDroppedSamples(this.dropped)
+                .setCoalescedSamples(this.coalesced)
+                .setSkippedSamples(this.skipped);
+    }
+}
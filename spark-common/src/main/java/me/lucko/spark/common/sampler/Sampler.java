@@ -22,34 +22,50 @@
 package me.lucko.spark.common.sampler;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.CodedOutputStream;
 import me.lucko.spark.common.command.sender.CommandSender;
 import me.lucko.spark.common.platform.PlatformInfo;
+import me.lucko.spark.common.sampler.aggregator.AbstractDataAggregator;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.aggregator.MappedDataAggregator;
+import me.lucko.spark.common.sampler.aggregator.RollingDataAggregator;
+import me.lucko.spark.common.sampler.aggregator.SpikeDataAggregator;
+import me.lucko.spark.common.sampler.aggregator.SpikeDataAggregator.SpikeRecord;
 import me.lucko.spark.common.sampler.aggregator.SimpleDataAggregator;
 import me.lucko.spark.common.sampler.aggregator.TickedDataAggregator;
+import me.lucko.spark.common.sampler.jfr.JfrEngine;
 import me.lucko.spark.common.sampler.node.MergeMode;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.common.sampler.tick.TickHook;
+import me.lucko.spark.common.sampler.tick.TickReporter;
+import me.lucko.spark.common.util.StreamingPayload;
+import me.lucko.spark.proto.SparkProtos;
 import me.lucko.spark.proto.SparkProtos.SamplerData;
 import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Main sampler class.
@@ -57,13 +73,21 @@ import java.util.zip.GZIPOutputStream;
 public class Sampler implements Runnable {
     private static final AtomicInteger THREAD_ID = new AtomicInteger(0);
 
+    /** How often samples captured by an external engine are inserted, in milliseconds */
+    private static final long EXTERNAL_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    /** Measures the costs of the sampler itself */
+    private final SamplerOverhead overhead = new SamplerOverhead();
+
     /** The worker pool for inserting stack nodes */
     private final ScheduledExecutorService workerPool = Executors.newScheduledThreadPool(
-            6, new ThreadFactoryBuilder().setNameFormat("spark-worker-" + THREAD_ID.getAndIncrement() + "-%d").build()
+            6, this.overhead.track(new ThreadFactoryBuilder().setNameFormat("spark-worker-" + THREAD_ID.getAndIncrement() + "-%d").build())
     );
 
     /** The main sampling task */
     private ScheduledFuture<?> task;
+    /** The timer running the sampling task on a dedicated thread, if high resolution sampling is enabled */
+    private PrecisionTimer precisionTimer;
 
     /** The thread management interface for the current JVM */
     private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
@@ -81,27 +105,210 @@ public class Sampler implements Runnable {
     private long startTime = -1;
     /** The unix timestamp (in millis) when this sampler should automatically complete.*/
     private final long endTime; // -1 for nothing
+    /** Used to record the tick each dump was captured during, null if ticks aren't tracked */
+    private final TickHook tickHook;
+
+    /** What to do if dumps are captured faster than they can be inserted */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.SLOW_DOWN;
+    /** What each sample is weighted by */
+    private SamplerMode mode = SamplerMode.EXECUTION;
+    /** Reads the per-thread counter used to weight samples, null if weighted by wall-clock time */
+    private ThreadCounter threadCounter;
+    /** Dumps the sampled threads along with the owners of the locks they wait on, null unless in the contention mode */
+    private ContentionDumper contentionDumper;
+    /** The engine used to capture samples */
+    private SamplerEngine engine = SamplerEngine.JAVA;
+    /** The engine capturing samples, null if thread dumps are taken by the sampler itself */
+    private ExternalEngine externalEngine;
+    /** Why the requested engine couldn't be used, if it couldn't */
+    private String engineFallbackReason;
+    /** If each stack should begin with a frame for the state of the thread */
+    private boolean threadStateFrames = false;
+    /** If dumps should be captured by a dedicated timing thread, rather than the worker pool */
+    private boolean highResolution = false;
+    /** The buffer of dumps waiting to be inserted into the data aggregator */
+    private SampleBuffer sampleBuffer;
+    /** The intervals achieved between dumps */
+    private IntervalHistogram intervalHistogram;
+    /** The {@link System#nanoTime()} when the previous dump was captured */
+    private long lastCapture = -1;
+    /** If the sampler timed out waiting for the workers to insert pending samples */
+    private boolean incomplete = false;
     
     public Sampler(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long endTime, boolean ignoreSleeping, boolean ignoreNative) {
         this.threadDumper = threadDumper;
         this.dataAggregator = new SimpleDataAggregator(this.workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative);
         this.interval = interval;
         this.endTime = endTime;
+        this.tickHook = null;
+    }
+
+    public Sampler(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long endTime, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, int tickLengthThreshold, TickReporter tickReporter) {
+        this.threadDumper = threadDumper;
+        this.dataAggregator = new TickedDataAggregator(this.workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative, tickHook, tickLengthThreshold, tickReporter);
+        this.interval = interval;
+        this.endTime = endTime;
+        this.tickHook = tickHook;
+    }
+
+    public Sampler(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long endTime, boolean ignoreSleeping, boolean ignoreNative, Path storageDirectory, SamplerMode mode) {
+        this.threadDumper = threadDumper;
+        try {
+            this.dataAggregator = new MappedDataAggregator(this.workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative, storageDirectory, mode);
+        } catch (IOException e) {
+            this.workerPool.shutdown();
+            throw new RuntimeException("Unable to open sampler data in " + storageDirectory + ": " + e.getMessage(), e);
+        }
+        this.interval = interval;
+        this.endTime = endTime;
+        this.tickHook = null;
     }
 
-    public Sampler(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long endTime, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, int tickLengthThreshold) {
+    public Sampler(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long endTime, boolean ignoreSleeping, boolean ignoreNative, long windowLength) {
         this.threadDumper = threadDumper;
-        this.dataAggregator = new TickedDataAggregator(this.workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative, tickHook, tickLengthThreshold);
+        this.dataAggregator = new RollingDataAggregator(this.workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative, windowLength);
         this.interval = interval;
         this.endTime = endTime;
+        this.tickHook = null;
+    }
+
+    public Sampler(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long endTime, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, TickReporter tickReporter, int spikeThreshold) {
+        this.threadDumper = threadDumper;
+        this.dataAggregator = new SpikeDataAggregator(this.workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative, tickHook, tickReporter, spikeThreshold);
+        this.interval = interval;
+        this.endTime = endTime;
+        this.tickHook = tickHook;
+    }
+
+    /**
+     * Sets what the sampler should do if dumps are captured faster than they can be inserted.
+     *
+     * <p>Must be called before the sampler is started.</p>
+     *
+     * @param overflowPolicy the overflow policy
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Sets what each sample should be weighted by.
+     *
+     * <p>Must be called before the sampler is started.</p>
+     *
+     * @param mode the mode
+     * @throws UnsupportedOperationException if the mode isn't supported by the JVM
+     */
+    public void setMode(SamplerMode mode) {
+        this.threadCounter = mode.createCounter(this.threadBean);
+        this.mode = mode;
+        this.contentionDumper = mode == SamplerMode.CONTENTION ? new ContentionDumper(this.threadDumper) : null;
+        this.dataAggregator.setLockFrames(mode == SamplerMode.CONTENTION);
+    }
+
+    /**
+     * Sets if each stack should begin with a frame for the state of the thread, so on-CPU,
+     * blocked and waiting time can be told apart within one profile.
+     *
+     * <p>Must be called before the sampler is started.</p>
+     *
+     * @param threadStateFrames if thread state frames should be added
+     */
+    public void setThreadStateFrames(boolean threadStateFrames) {
+        this.threadStateFrames = threadStateFrames;
+        this.dataAggregator.setThreadStateFrames(threadStateFrames);
+    }
+
+    /**
+     * Sets the engine used to capture samples.
+     *
+     * <p>If the engine can't be used, the sampler falls back to taking thread dumps itself. Must
+     * be called before the sampler is started, and after the mode has been set.</p>
+     *
+     * @param engine the engine
+     */
+    public void setEngine(SamplerEngine engine) {
+        try {
+            this.externalEngine = createExternalEngine(engine);
+            this.engine = engine;
+        } catch (UnsupportedOperationException e) {
+            this.externalEngine = null;
+            this.engine = SamplerEngine.JAVA;
+            this.engineFallbackReason = e.getMessage();
+        }
+    }
+
+    /**
+     * Sets if dumps should be captured by a dedicated, high priority timing thread, rather than
+     * being scheduled on the worker pool. This allows intervals well below a millisecond to be
+     * achieved accurately.
+     *
+     * <p>Has no effect if samples are captured by an external engine.</p>
+     *
+     * @param highResolution if high resolution sampling should be used
+     */
+    public void setHighResolution(boolean highResolution) {
+        this.highResolution = highResolution;
+    }
+
+    private ExternalEngine createExternalEngine(SamplerEngine engine) {
+        if (engine == SamplerEngine.JAVA) {
+            return null;
+        }
+        if (this.dataAggregator instanceof TickedDataAggregator || this.dataAggregator instanceof SpikeDataAggregator) {
+            throw new UnsupportedOperationException("Tick based sampling is not supported by the " + engine.name().toLowerCase() + " engine");
+        }
+        if (this.threadStateFrames) {
+            throw new UnsupportedOperationException("Thread state frames are not supported by the " + engine.name().toLowerCase() + " engine");
+        }
+        return JfrEngine.create(this.threadDumper, this.mode, this.interval);
+    }
+
+    /**
+     * Gets the engine used to capture samples.
+     *
+     * @return the engine
+     */
+    public SamplerEngine getEngine() {
+        return this.engine;
+    }
+
+    /**
+     * Gets the reason the requested engine couldn't be used.
+     *
+     * @return the reason, or null if the requested engine is in use
+     */
+    public String getEngineFallbackReason() {
+        return this.engineFallbackReason;
     }
 
     /**
      * Starts the sampler.
      */
     public void start() {
-        this.startTime = System.currentTimeMillis();
-        this.task = this.workerPool.scheduleAtFixedRate(this, 0, this.interval, TimeUnit.MICROSECONDS);
+        this.sampleBuffer = new SampleBuffer(this.workerPool, this.dataAggregator, this.threadCounter, this.overhead, this.overflowPolicy, SampleBuffer.DEFAULT_CAPACITY, AbstractDataAggregator.SHARD_COUNT);
+        this.intervalHistogram = new IntervalHistogram(this.interval);
+
+        if (this.dataAggregator instanceof MappedDataAggregator) {
+            // include the time spent sampling before any restarts
+            this.startTime = ((MappedDataAggregator) this.dataAggregator).getStartTime();
+        } else {
+            this.startTime = System.currentTimeMillis();
+        }
+        if (this.externalEngine != null) {
+            this.externalEngine.start(this.dataAggregator);
+            this.task = this.workerPool.scheduleAtFixedRate(this, EXTERNAL_POLL_INTERVAL, EXTERNAL_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        } else if (this.highResolution) {
+            this.precisionTimer = new PrecisionTimer(this, TimeUnit.MICROSECONDS.toNanos(this.interval));
+            ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                    .setNameFormat("spark-sampler-" + THREAD_ID.getAndIncrement())
+                    .setDaemon(true)
+                    .setPriority(Thread.MAX_PRIORITY)
+                    .build();
+            this.overhead.track(threadFactory).newThread(this.precisionTimer).start();
+        } else {
+            this.task = this.workerPool.scheduleAtFixedRate(this, 0, this.interval, TimeUnit.MICROSECONDS);
+        }
     }
 
     public long getStartTime() {
@@ -120,13 +327,55 @@ public class Sampler implements Runnable {
     }
 
     public void cancel() {
-        this.task.cancel(false);
+        if (this.task != null) {
+            this.task.cancel(false);
+        }
+        if (this.precisionTimer != null) {
+            this.precisionTimer.cancel();
+        }
+    }
+
+    /**
+     * Stops the sampler and releases any resources held by the data aggregator.
+     *
+     * @param discard if any data persisted by the aggregator should be deleted
+     */
+    public void close(boolean discard) {
+        cancel();
+        if (this.externalEngine != null) {
+            this.externalEngine.stop();
+        }
+        if (!discard) {
+            if (this.sampleBuffer != null) {
+                this.sampleBuffer.complete();
+            }
+            awaitWorkers();
+        }
+        this.dataAggregator.close(discard);
+        this.workerPool.shutdown();
+    }
+
+    /**
+     * Shuts down the worker pool, and waits for it to finish inserting any pending samples.
+     *
+     * <p>If the pool doesn't terminate in time, the output is marked as incomplete.</p>
+     */
+    private void awaitWorkers() {
+        this.workerPool.shutdown();
+        try {
+            if (!this.workerPool.awaitTermination(60, TimeUnit.SECONDS)) {
+                this.incomplete = true;
+            }
+        } catch (InterruptedException e) {
+            this.incomplete = true;
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void run() {
-        // this is effectively synchronized, the worker pool will not allow this task
-        // to concurrently execute.
+        // this is effectively synchronized, the worker pool (or precision timer) will not
+        // allow this task to concurrently execute.
         try {
             if (this.endTime != -1 && this.endTime <= System.currentTimeMillis()) {
                 this.future.complete(this);
@@ -134,70 +383,218 @@ public class Sampler implements Runnable {
                 return;
             }
 
-            ThreadInfo[] threadDumps = this.threadDumper.dumpThreads(this.threadBean);
-            this.workerPool.execute(new InsertDataTask(this.dataAggregator, threadDumps));
+            if (this.externalEngine != null) {
+                this.externalEngine.poll();
+                return;
+            }
+
+            if (!this.sampleBuffer.shouldCapture()) {
+                return;
+            }
+
+            long captureTime = System.nanoTime();
+            long captureTimeMillis = System.currentTimeMillis();
+            int tick = this.tickHook == null ? DataAggregator.UNKNOWN_TICK : this.tickHook.getCurrentTick();
+            ThreadInfo[] threadDumps;
+            ThreadInfo[] lockOwners = null;
+            if (this.contentionDumper != null) {
+                // the owners of contended locks are needed to attribute the contention, but they
+                // may not be sampled themselves - if so, include them in the dump with no weight
+                ContentionDumper.Dump dump = this.contentionDumper.dump(this.threadBean);
+                threadDumps = dump.threads;
+                lockOwners = dump.lockOwners;
+            } else {
+                threadDumps = this.threadDumper.dumpThreads(this.threadBean);
+            }
+            long[] counterValues = this.threadCounter == null ? null : this.threadCounter.read(threadDumps);
+            if (lockOwners != null && lockOwners.length != 0) {
+                int length = threadDumps.length;
+                threadDumps = Arrays.copyOf(threadDumps, length + lockOwners.length);
+                System.arraycopy(lockOwners, 0, threadDumps, length, lockOwners.length);
+                counterValues = Arrays.copyOf(counterValues, threadDumps.length);
+                Arrays.fill(counterValues, length, threadDumps.length, -1);
+            }
+            this.overhead.recordDump(captureTime, System.nanoTime());
+
+            // the task drifts, bunches up after pauses and skips under load, so weight
+            // each dump by the time which actually passed since the previous one
+            long time = this.interval;
+            if (this.lastCapture != -1) {
+                time = TimeUnit.NANOSECONDS.toMicros(captureTime - this.lastCapture);
+                this.intervalHistogram.record(time);
+            }
+            this.lastCapture = captureTime;
+
+            this.sampleBuffer.offer(threadDumps, captureTimeMillis, time, counterValues, tick);
         } catch (Throwable t) {
             this.future.completeExceptionally(t);
             cancel();
         }
     }
 
-    private static final class InsertDataTask implements Runnable {
-        private final DataAggregator dataAggregator;
-        private final ThreadInfo[] threadDumps;
+    /**
+     * Gets the costs of the sampler itself so far.
+     *
+     * @return the overhead
+     */
+    public SamplerMetadata.SamplerOverhead getOverhead() {
+        return this.overhead.toProto(this.interval);
+    }
+
+    /**
+     * Gets if the sampler only retains data for a rolling window of time.
+     *
+     * @return if the sampler is a rolling window sampler
+     */
+    public boolean isRollingWindow() {
+        return this.dataAggregator instanceof RollingDataAggregator;
+    }
+
+    /**
+     * Gets the lag spikes recorded by the sampler, oldest first.
+     *
+     * @return the spike records, or an empty list if the sampler doesn't record spikes
+     */
+    public List<SpikeRecord> getSpikeRecords() {
+        if (!(this.dataAggregator instanceof SpikeDataAggregator)) {
+            return Collections.emptyList();
+        }
+        return ((SpikeDataAggregator) this.dataAggregator).getRecords();
+    }
 
-        InsertDataTask(DataAggregator dataAggregator, ThreadInfo[] threadDumps) {
-            this.dataAggregator = dataAggregator;
-            this.threadDumps = threadDumps;
+    /**
+     * Gets the lag spike recorded by the sampler with the given id.
+     *
+     * @param id the id
+     * @return the spike record, or null if it doesn't exist
+     */
+    public SpikeRecord getSpikeRecord(int id) {
+        if (!(this.dataAggregator instanceof SpikeDataAggregator)) {
+            return null;
         }
+        return ((SpikeDataAggregator) this.dataAggregator).getRecord(id);
+    }
 
-        @Override
-        public void run() {
-            for (ThreadInfo threadInfo : this.threadDumps) {
-                if (threadInfo.getThreadName() == null || threadInfo.getStackTrace() == null) {
-                    continue;
-                }
-                this.dataAggregator.insertData(threadInfo);
-            }
+    private StreamingPayload toPayload(PlatformInfo platformInfo, CommandSender creator, Comparator<? super Map.Entry<String, ThreadNode>> outputOrder, String comment, MergeMode mergeMode) {
+        // insert any buffered samples, then wait for the workers to finish with them
+        if (this.externalEngine != null) {
+            this.externalEngine.stop();
         }
+        this.sampleBuffer.complete();
+        awaitWorkers();
+
+        return toPayload(platformInfo, creator, outputOrder, comment, mergeMode, this.startTime, this.dataAggregator.getData());
     }
 
-    private SamplerData toProto(PlatformInfo platformInfo, CommandSender creator, Comparator<? super Map.Entry<String, ThreadNode>> outputOrder, String comment, MergeMode mergeMode) {
+    private StreamingPayload toPayload(PlatformInfo platformInfo, CommandSender creator, Comparator<? super Map.Entry<String, ThreadNode>> outputOrder, String comment, MergeMode mergeMode, long startTime, Map<String, ThreadNode> threadData) {
+        // the metadata is captured now, the threads are exported as the payload is written
         final SamplerMetadata.Builder metadata = SamplerMetadata.newBuilder()
                 .setPlatform(platformInfo.toData().toProto())
                 .setUser(creator.toData().toProto())
-                .setStartTime(this.startTime)
+                .setStartTime(startTime)
                 .setInterval(this.interval)
+                .setMode(this.mode.asProto())
+                .setValueUnit(this.mode.getUnit())
+                .setThreadStateFrames(this.threadStateFrames)
+                .setEngine(this.engine.asProto())
                 .setThreadDumper(this.threadDumper.getMetadata())
-                .setDataAggregator(this.dataAggregator.getMetadata());
+                .setDataAggregator(this.dataAggregator.getMetadata())
+                .setSamplingStatistics(this.sampleBuffer.toProto().setIncomplete(this.incomplete))
+                .setOverhead(getOverhead())
+                .setIntervalHistogram(this.intervalHistogram.toProto());
 
         if (comment != null) {
             metadata.setComment(comment);
         }
 
-        SamplerData.Builder proto = SamplerData.newBuilder();
-        proto.setMetadata(metadata.build());
-
-        List<Map.Entry<String, ThreadNode>> data = new ArrayList<>(this.dataAggregator.getData().entrySet());
+        List<Map.Entry<String, ThreadNode>> data = new ArrayList<>(threadData.entrySet());
         data.sort(outputOrder);
 
+        List<ThreadNode> nodes = new ArrayList<>(data.size());
         for (Map.Entry<String, ThreadNode> entry : data) {
-            proto.addThreads(entry.getValue().toProto(mergeMode));
+            nodes.add(entry.getValue());
+        }
+
+        SamplerMetadata builtMetadata = metadata.build();
+        return out -> {
+            out.writeMessage(SamplerData.METADATA_FIELD_NUMBER, builtMetadata);
+            writeThreads(out, nodes, mergeMode);
+        };
+    }
+
+    /**
+     * Exports the given threads and writes them to the stream, in order.
+     *
+     * <p>Threads (and any large subtrees within them) are exported in parallel, but only a few
+     * threads ahead of the one being written, so only a small number of exported threads are held
+     * in memory at once.</p>
+     */
+    private static void writeThreads(CodedOutputStream out, List<ThreadNode> nodes, MergeMode mergeMode) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool exportPool = new ForkJoinPool(parallelism);
+        try {
+            Deque<ForkJoinTask<SparkProtos.ThreadNode>> tasks = new ArrayDeque<>();
+            Iterator<ThreadNode> it = nodes.iterator();
+            while (it.hasNext() || !tasks.isEmpty()) {
+                while (it.hasNext() && tasks.size() < parallelism + 1) {
+                    ThreadNode node = it.next();
+                    tasks.addLast(exportPool.submit(() -> node.toProto(mergeMode)));
+                }
+                out.writeMessage(SamplerData.THREADS_FIELD_NUMBER, tasks.removeFirst().join());
+            }
+        } finally {
+            exportPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Forms a payload containing the sampled data.
+     *
+     * <p>The threads are only exported as the payload is written, so it should be written once,
+     * before the sampler is closed.</p>
+     *
+     * @return the payload
+     */
+    public StreamingPayload formDataPayload(PlatformInfo platformInfo, CommandSender creator, Comparator<? super Map.Entry<String, ThreadNode>> outputOrder, String comment, MergeMode mergeMode) {
+        return toPayload(platformInfo, creator, outputOrder, comment, mergeMode);
+    }
+
+    /**
+     * Forms a payload containing the data sampled within the given length of time before now.
+     *
+     * <p>Only supported by {@link #isRollingWindow() rolling window} samplers. The sampler
+     * continues to run afterwards.</p>
+     *
+     * @param duration the duration, in milliseconds
+     * @return the payload
+     */
+    public StreamingPayload formDataPayload(PlatformInfo platformInfo, CommandSender creator, Comparator<? super Map.Entry<String, ThreadNode>> outputOrder, String comment, MergeMode mergeMode, long duration) {
+        if (!isRollingWindow()) {
+            throw new IllegalStateException("Not a rolling window sampler");
         }
 
-        return proto.build();
+        RollingDataAggregator aggregator = (RollingDataAggregator) this.dataAggregator;
+        long startTime = Math.max(this.startTime, System.currentTimeMillis() - Math.min(duration, aggregator.getWindowLength()));
+        return toPayload(platformInfo, creator, outputOrder, comment, mergeMode, startTime, aggregator.getData(duration));
     }
 
-    public byte[] formCompressedDataPayload(PlatformInfo platformInfo, CommandSender creator, Comparator<? super Map.Entry<String, ThreadNode>> outputOrder, String comment, MergeMode mergeMode) {
-        SamplerData proto = toProto(platformInfo, creator, outputOrder, comment, mergeMode);
+    /**
+     * Forms a payload containing the data recorded for a single lag spike.
+     *
+     * @param record the spike record
+     * @return the payload
+     */
+    public StreamingPayload formDataPayload(PlatformInfo platformInfo, CommandSender creator, Comparator<? super Map.Entry<String, ThreadNode>> outputOrder, String comment, MergeMode mergeMode, SpikeRecord record) {
+        if (!(this.dataAggregator instanceof SpikeDataAggregator)) {
+            throw new IllegalStateException("Not a spike recording sampler");
+        }
 
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        try (OutputStream out = new GZIPOutputStream(byteOut)) {
-            proto.writeTo(out);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (comment == null) {
+            comment = String.format("Lag spike #%d (%.1fms)", record.getId(), record.getDuration());
         }
-        return byteOut.toByteArray();
+
+        SpikeDataAggregator aggregator = (SpikeDataAggregator) this.dataAggregator;
+        return toPayload(platformInfo, creator, outputOrder, comment, mergeMode, record.getStartTime(), aggregator.getData(record));
     }
 
 }
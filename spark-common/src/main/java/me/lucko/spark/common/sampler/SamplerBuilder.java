@@ -21,7 +21,9 @@
 package me.lucko.spark.common.sampler;
 
 import me.lucko.spark.common.sampler.tick.TickHook;
+import me.lucko.spark.common.sampler.tick.TickReporter;
 
+import java.nio.file.Path;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -39,6 +41,17 @@ public class SamplerBuilder {
     private int ticksOver = -1;
     private TickHook tickHook = null;
 
+    private int spikeThreshold = -1;
+    private TickReporter tickReporter = null;
+
+    private Path storageDirectory = null;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.SLOW_DOWN;
+    private SamplerMode mode = SamplerMode.EXECUTION;
+    private boolean threadStateFrames = false;
+    private SamplerEngine engine = SamplerEngine.JAVA;
+    private boolean highResolution = false;
+    private long windowLength = -1;
+
     public SamplerBuilder() {
     }
 
@@ -66,8 +79,131 @@ public class SamplerBuilder {
     }
 
     public SamplerBuilder ticksOver(int ticksOver, TickHook tickHook) {
+        return ticksOver(ticksOver, tickHook, null);
+    }
+
+    /**
+     * Only includes the samples from ticks which last longer than the given threshold.
+     *
+     * @param ticksOver the threshold, in milliseconds
+     * @param tickHook the tick hook
+     * @param tickReporter the tick reporter used to measure tick durations, or null to estimate
+     *                     them from the number of samples
+     * @return this builder
+     */
+    public SamplerBuilder ticksOver(int ticksOver, TickHook tickHook, TickReporter tickReporter) {
         this.ticksOver = ticksOver;
         this.tickHook = tickHook;
+        this.tickReporter = tickReporter;
+        return this;
+    }
+
+    /**
+     * Records the samples from ticks which last longer than the given threshold (plus the
+     * ticks leading up to them) as separate lag spike records.
+     *
+     * @param spikeThreshold the threshold, in milliseconds
+     * @param tickHook the tick hook
+     * @param tickReporter the tick reporter, used to measure tick durations
+     * @return this builder
+     */
+    public SamplerBuilder recordSpikes(int spikeThreshold, TickHook tickHook, TickReporter tickReporter) {
+        this.spikeThreshold = spikeThreshold;
+        this.tickHook = tickHook;
+        this.tickReporter = tickReporter;
+        return this;
+    }
+
+    /**
+     * Stores the sampled data in memory-mapped files in the given directory, instead of
+     * on the heap. Any existing data in the directory is resumed.
+     *
+     * <p>Cannot be combined with {@link #ticksOver(int, TickHook)}.</p>
+     *
+     * @param storageDirectory the directory
+     * @return this builder
+     */
+    public SamplerBuilder storageDirectory(Path storageDirectory) {
+        this.storageDirectory = storageDirectory;
+        return this;
+    }
+
+    /**
+     * Only retains the data sampled within a rolling window of the given length.
+     *
+     * <p>Cannot be combined with {@link #ticksOver(int, TickHook)} or
+     * {@link #storageDirectory(Path)}.</p>
+     *
+     * @param windowLength the window length
+     * @param unit the unit of the window length
+     * @return this builder
+     */
+    public SamplerBuilder rollingWindow(long windowLength, TimeUnit unit) {
+        if (windowLength <= 0) {
+            throw new IllegalArgumentException("windowLength > 0");
+        }
+        this.windowLength = unit.toMillis(windowLength);
+        return this;
+    }
+
+    /**
+     * Sets what the sampler should do if thread dumps are captured faster than they can be inserted.
+     *
+     * @param overflowPolicy the overflow policy
+     * @return this builder
+     */
+    public SamplerBuilder overflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Sets what each sample should be weighted by.
+     *
+     * @param mode the mode
+     * @return this builder
+     */
+    public SamplerBuilder mode(SamplerMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Sets if each stack should begin with a frame for the state of the thread.
+     *
+     * @param threadStateFrames if thread state frames should be added
+     * @return this builder
+     */
+    public SamplerBuilder threadStateFrames(boolean threadStateFrames) {
+        this.threadStateFrames = threadStateFrames;
+        return this;
+    }
+
+    /**
+     * Sets the engine used to capture samples.
+     *
+     * <p>If the engine can't be used, the sampler falls back to {@link SamplerEngine#JAVA}.</p>
+     *
+     * @param engine the engine
+     * @return this builder
+     */
+    public SamplerBuilder engine(SamplerEngine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Sets if dumps should be captured by a dedicated, high priority timing thread. Intended
+     * for sampling a single thread (e.g. the server thread) at sub-millisecond intervals.
+     *
+     * <p>Can only be used with a {@link ThreadDumper.Specific} dumper which selects a
+     * single thread.</p>
+     *
+     * @param highResolution if high resolution sampling should be used
+     * @return this builder
+     */
+    public SamplerBuilder highResolution(boolean highResolution) {
+        this.highResolution = highResolution;
         return this;
     }
 
@@ -82,16 +218,37 @@ public class SamplerBuilder {
     }
 
     public Sampler start() {
+        if (this.highResolution && !(this.threadDumper instanceof ThreadDumper.Specific && ((ThreadDumper.Specific) this.threadDumper).isSingleThread())) {
+            throw new IllegalStateException("High resolution sampling can only be used to sample a single thread");
+        }
+
         Sampler sampler;
 
         int intervalMicros = (int) (this.samplingInterval * 1000d);
-        if (this.ticksOver == -1 || this.tickHook == null) {
+        if (this.spikeThreshold != -1 && this.tickHook != null && this.tickReporter != null) {
+            sampler = new Sampler(intervalMicros, this.threadDumper, this.threadGrouper, this.timeout, this.ignoreSleeping, this.ignoreNative, this.tickHook, this.tickReporter, this.spikeThreshold);
+        } else if (this.windowLength != -1) {
+            sampler = new Sampler(intervalMicros, this.threadDumper, this.threadGrouper, this.timeout, this.ignoreSleeping, this.ignoreNative, this.windowLength);
+        } else if (this.storageDirectory != null) {
+            sampler = new Sampler(intervalMicros, this.threadDumper, this.threadGrouper, this.timeout, this.ignoreSleeping, this.ignoreNative, this.storageDirectory, this.mode);
+        } else if (this.ticksOver == -1 || this.tickHook == null) {
             sampler = new Sampler(intervalMicros, this.threadDumper, this.threadGrouper, this.timeout, this.ignoreSleeping, this.ignoreNative);
         } else {
-            sampler = new Sampler(intervalMicros, this.threadDumper, this.threadGrouper, this.timeout, this.ignoreSleeping, this.ignoreNative, this.tickHook, this.ticksOver);
+            sampler = new Sampler(intervalMicros, this.threadDumper, this.threadGrouper, this.timeout, this.ignoreSleeping, this.ignoreNative, this.tickHook, this.ticksOver, this.tickReporter);
         }
 
-        sampler.start();
+        try {
+            sampler.setOverflowPolicy(this.overflowPolicy);
+            sampler.setMode(this.mode);
+            sampler.setThreadStateFrames(this.threadStateFrames);
+            sampler.setEngine(this.engine);
+            sampler.setHighResolution(this.highResolution);
+            sampler.start();
+        } catch (RuntimeException e) {
+            // release any files held by the data aggregator, keeping persisted data
+            sampler.close(false);
+            throw e;
+        }
         return sampler;
     }
 
@@ -0,0 +1,48 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+/**
+ * The engine used by the sampler to capture samples.
+ */
+public enum SamplerEngine {
+
+    /**
+     * Take thread dumps using the {@link java.lang.management.ThreadMXBean}
+     */
+    JAVA(SamplerMetadata.Engine.JAVA),
+
+    /**
+     * Use JDK Flight Recorder method sampling, which doesn't suffer from safepoint bias
+     */
+    JFR(SamplerMetadata.Engine.JFR);
+
+    private final SamplerMetadata.Engine proto;
+
+    SamplerEngine(SamplerMetadata.Engine proto) {
+        this.proto = proto;
+    }
+
+    public SamplerMetadata.Engine asProto() {
+        return this.proto;
+    }
+}
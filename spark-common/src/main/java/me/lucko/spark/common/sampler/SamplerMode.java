@@ -0,0 +1,102 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+import java.lang.management.ThreadMXBean;
+
+/**
+ * What each sample taken by the sampler is weighted by.
+ */
+public enum SamplerMode {
+
+    /**
+     * Weight samples by the wall-clock time between dumps
+     */
+    EXECUTION(SamplerMetadata.Mode.EXECUTION, SamplerMetadata.ValueUnit.MICROSECONDS) {
+        @Override
+        ThreadCounter createCounter(ThreadMXBean threadBean) {
+            return null;
+        }
+    },
+
+    /**
+     * Weight samples by the CPU time each thread used between dumps
+     */
+    CPU_TIME(SamplerMetadata.Mode.CPU_TIME, SamplerMetadata.ValueUnit.MICROSECONDS) {
+        @Override
+        ThreadCounter createCounter(ThreadMXBean threadBean) {
+            return ThreadCounter.cpuTime(threadBean);
+        }
+    },
+
+    /**
+     * Weight samples by the number of bytes each thread allocated between dumps
+     */
+    ALLOCATION(SamplerMetadata.Mode.ALLOCATION, SamplerMetadata.ValueUnit.BYTES) {
+        @Override
+        ThreadCounter createCounter(ThreadMXBean threadBean) {
+            return ThreadCounter.allocatedBytes(threadBean);
+        }
+    },
+
+    /**
+     * Weight samples by the time each thread spent blocked or waiting between dumps, and attribute
+     * the time to the lock being waited on and the stack of its owner
+     */
+    CONTENTION(SamplerMetadata.Mode.CONTENTION, SamplerMetadata.ValueUnit.MICROSECONDS) {
+        @Override
+        ThreadCounter createCounter(ThreadMXBean threadBean) {
+            return ThreadCounter.contentionTime(threadBean);
+        }
+    };
+
+    private final SamplerMetadata.Mode proto;
+    private final SamplerMetadata.ValueUnit unit;
+
+    SamplerMode(SamplerMetadata.Mode proto, SamplerMetadata.ValueUnit unit) {
+        this.proto = proto;
+        this.unit = unit;
+    }
+
+    /**
+     * Creates the counter used to weight samples.
+     *
+     * @param threadBean the thread bean
+     * @return the counter, or null if samples are weighted by wall-clock time
+     * @throws UnsupportedOperationException if the mode isn't supported by the JVM
+     */
+    abstract ThreadCounter createCounter(ThreadMXBean threadBean);
+
+    public SamplerMetadata.Mode asProto() {
+        return this.proto;
+    }
+
+    /**
+     * Gets the unit of the values recorded in this mode.
+     *
+     * @return the unit
+     */
+    public SamplerMetadata.ValueUnit getUnit() {
+        return this.unit;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Measures the costs of the sampler itself.
+ */
+final class SamplerOverhead {
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /** The live threads used by the sampler */
+    private final Set<Thread> workerThreads = ConcurrentHashMap.newKeySet();
+
+    // guarded by 'this'
+    private long retiredCpuTime = 0;
+    private long retiredAllocatedBytes = 0;
+    private long dumpCount = 0;
+    private long dumpTimeTotal = 0;
+    private long dumpTimeMax = 0;
+    private long firstDump = 0;
+    private long lastDump = 0;
+    private long insertCount = 0;
+    private long queueLagTotal = 0;
+    private long queueLagMax = 0;
+
+    /**
+     * Wraps a thread factory so the CPU time and allocations of the threads it creates are measured.
+     *
+     * <p>When a thread finishes, its totals are carried over so they are still counted.</p>
+     *
+     * @param factory the factory
+     * @return the wrapped factory
+     */
+    ThreadFactory track(ThreadFactory factory) {
+        return runnable -> {
+            Thread thread = factory.newThread(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    retireCurrentThread();
+                }
+            });
+            this.workerThreads.add(thread);
+            return thread;
+        };
+    }
+
+    private synchronized void retireCurrentThread() {
+        Thread thread = Thread.currentThread();
+        long cpuTime = getCpuTime(thread);
+        if (cpuTime > 0) {
+            this.retiredCpuTime += cpuTime;
+        }
+        long allocatedBytes = getAllocatedBytes(thread);
+        if (allocatedBytes > 0) {
+            this.retiredAllocatedBytes += allocatedBytes;
+        }
+        this.workerThreads.remove(thread);
+    }
+
+    /**
+     * Records the time taken to dump threads.
+     *
+     * @param start the {@link System#nanoTime()} before the dump
+     * @param end the {@link System#nanoTime()} after the dump
+     */
+    synchronized void recordDump(long start, long end) {
+        long duration = end - start;
+        if (this.dumpCount == 0) {
+            this.firstDump = start;
+        }
+        this.lastDump = start;
+        this.dumpCount++;
+        this.dumpTimeTotal += duration;
+        this.dumpTimeMax = Math.max(this.dumpTimeMax, duration);
+    }
+
+    /**
+     * Records the time a dump spent waiting to be inserted.
+     *
+     * @param capturedAt the {@link System#nanoTime()} when the dump was captured
+     */
+    synchronized void recordInsert(long capturedAt) {
+        long lag = System.nanoTime() - capturedAt;
+        this.insertCount++;
+        this.queueLagTotal += lag;
+        this.queueLagMax = Math.max(this.queueLagMax, lag);
+    }
+
+    synchronized SamplerMetadata.SamplerOverhead toProto(int requestedInterval) {
+        SamplerMetadata.SamplerOverhead.Builder proto = SamplerMetadata.SamplerOverhead.newBuilder()
+                .setRequestedInterval(requestedInterval)
+                .setDumpTimeMax(this.dumpTimeMax / 1000d)
+                .setQueueLagMax(this.queueLagMax / 1000d);
+
+        if (this.dumpCount != 0) {
+            proto.setDumpTimeAvg(this.dumpTimeTotal / 1000d / this.dumpCount);
+        }
+        if (this.dumpCount > 1) {
+            proto.setAchievedInterval((this.lastDump - this.firstDump) / 1000d / (this.dumpCount - 1));
+        }
+        if (this.insertCount != 0) {
+            proto.setQueueLagAvg(this.queueLagTotal / 1000d / this.insertCount);
+        }
+
+        long cpuTime = getWorkerCpuTime();
+        if (cpuTime != -1) {
+            proto.setWorkerCpuTime(cpuTime / 1000000d);
+            if (this.dumpCount != 0) {
+                proto.setCpuTimePerSample(cpuTime / 1000d / this.dumpCount);
+            }
+        }
+
+        long allocatedBytes = getWorkerAllocatedBytes();
+        if (allocatedBytes != -1 && this.dumpCount != 0) {
+            proto.setAllocatedBytesPerSample((double) allocatedBytes / this.dumpCount);
+        }
+
+        return proto.build();
+    }
+
+    // guarded by 'this'
+    private long getWorkerCpuTime() {
+        if (!isCpuTimeSupported()) {
+            return -1;
+        }
+
+        long total = this.retiredCpuTime;
+        for (Thread thread : this.workerThreads) {
+            long time = getCpuTime(thread);
+            if (time > 0) {
+                total += time;
+            }
+        }
+        return total;
+    }
+
+    // guarded by 'this'
+    private long getWorkerAllocatedBytes() {
+        if (!isAllocatedBytesSupported()) {
+            return -1;
+        }
+
+        long total = this.retiredAllocatedBytes;
+        for (Thread thread : this.workerThreads) {
+            long bytes = getAllocatedBytes(thread);
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private boolean isCpuTimeSupported() {
+        return this.threadBean.isThreadCpuTimeSupported() && this.threadBean.isThreadCpuTimeEnabled();
+    }
+
+    private boolean isAllocatedBytesSupported() {
+        if (!(this.threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) this.threadBean;
+        return threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled();
+    }
+
+    private long getCpuTime(Thread thread) {
+        return isCpuTimeSupported() ? this.threadBean.getThreadCpuTime(thread.getId()) : -1;
+    }
+
+    private long getAllocatedBytes(Thread thread) {
+        return isAllocatedBytesSupported() ? ((com.sun.management.ThreadMXBean) this.threadBean).getThreadAllocatedBytes(thread.getId()) : -1;
+    }
+}
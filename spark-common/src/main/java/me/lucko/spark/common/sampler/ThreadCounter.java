@@ -0,0 +1,169 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+/**
+ * Reads a cumulative per-thread counter (e.g. CPU time or allocated bytes), and converts the values into
+ * the amount each thread has used since it was last sampled.
+ *
+ * <p>Values are read when a dump is captured, but only converted when the dump is inserted.
+ * This means if a dump is dropped or coalesced, the amount it represented is carried over to
+ * the next dump which is inserted, rather than lost.</p>
+ */
+final class ThreadCounter {
+
+    /**
+     * Creates a counter which reads the CPU time used by each thread.
+     *
+     * @param threadBean the thread bean
+     * @return the counter, with values in microseconds
+     */
+    static ThreadCounter cpuTime(ThreadMXBean threadBean) {
+        if (!threadBean.isThreadCpuTimeSupported()) {
+            throw new UnsupportedOperationException("Thread CPU time measurement is not supported by this JVM");
+        }
+        if (!threadBean.isThreadCpuTimeEnabled()) {
+            threadBean.setThreadCpuTimeEnabled(true);
+        }
+        return new ThreadCounter(threadInfo -> threadBean.getThreadCpuTime(threadInfo.getThreadId()), 1000);
+    }
+
+    /**
+     * Creates a counter which reads the number of bytes allocated by each thread.
+     *
+     * @param threadBean the thread bean
+     * @return the counter, with values in bytes
+     */
+    static ThreadCounter allocatedBytes(ThreadMXBean threadBean) {
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            throw new UnsupportedOperationException("Thread allocation measurement is not supported by this JVM");
+        }
+
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!bean.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("Thread allocation measurement is not supported by this JVM");
+        }
+        if (!bean.isThreadAllocatedMemoryEnabled()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+        }
+        return new ThreadCounter(threadInfo -> bean.getThreadAllocatedBytes(threadInfo.getThreadId()), 1);
+    }
+
+    /**
+     * Creates a counter which reads the time each thread has spent blocked or waiting,
+     * as reported by thread contention monitoring.
+     *
+     * @param threadBean the thread bean
+     * @return the counter, with values in microseconds
+     */
+    static ThreadCounter contentionTime(ThreadMXBean threadBean) {
+        if (!threadBean.isThreadContentionMonitoringSupported()) {
+            throw new UnsupportedOperationException("Thread contention monitoring is not supported by this JVM");
+        }
+        if (!threadBean.isThreadContentionMonitoringEnabled()) {
+            threadBean.setThreadContentionMonitoringEnabled(true);
+        }
+        return new ThreadCounter(threadInfo -> {
+            long blockedTime = threadInfo.getBlockedTime();
+            long waitedTime = threadInfo.getWaitedTime();
+            if (blockedTime == -1 || waitedTime == -1) {
+                return -1;
+            }
+            return (blockedTime + waitedTime) * 1000;
+        }, 1);
+    }
+
+    /** Reads the current value of the counter for a thread, or -1 if unavailable */
+    private final ToLongFunction<ThreadInfo> reader;
+
+    /** The amount each unit of the resulting weights represents */
+    private final long divisor;
+
+    /** The value of the counter when each thread was last inserted, only accessed by the inserting thread */
+    private final Map<Long, Long> lastValues = new HashMap<>();
+
+    private ThreadCounter(ToLongFunction<ThreadInfo> reader, long divisor) {
+        this.reader = reader;
+        this.divisor = divisor;
+    }
+
+    /**
+     * Reads the current value of the counter for each thread in a dump.
+     *
+     * @param dump the dump
+     * @return the values
+     */
+    long[] read(ThreadInfo[] dump) {
+        long[] values = new long[dump.length];
+        for (int i = 0; i < dump.length; i++) {
+            values[i] = dump[i] == null ? -1 : this.reader.applyAsLong(dump[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Converts values previously {@link #read(ThreadInfo[]) read} for a dump into the amount each
+     * thread has used since it was last inserted.
+     *
+     * <p>Must be called in the same order the dumps were captured, by one thread at a time.</p>
+     *
+     * @param dump the dump
+     * @param values the values
+     * @return the weight of each sample in the dump
+     */
+    long[] toWeights(ThreadInfo[] dump, long[] values) {
+        long[] weights = new long[dump.length];
+        for (int i = 0; i < dump.length; i++) {
+            if (dump[i] == null || values[i] < 0) {
+                continue;
+            }
+
+            // threads seen for the first time are given no weight, as the
+            // counter includes everything they've done since they started
+            Long last = this.lastValues.get(dump[i].getThreadId());
+            long weight = last == null ? 0 : Math.max(0, (values[i] - last) / this.divisor);
+            weights[i] = weight;
+
+            // carry the remainder over to the next sample
+            this.lastValues.put(dump[i].getThreadId(), last == null ? values[i] : last + weight * this.divisor);
+        }
+
+        // forget about threads which have died
+        if (this.lastValues.size() > dump.length * 2) {
+            Set<Long> threadIds = new HashSet<>();
+            for (ThreadInfo threadInfo : dump) {
+                if (threadInfo != null) {
+                    threadIds.add(threadInfo.getThreadId());
+                }
+            }
+            this.lastValues.keySet().retainAll(threadIds);
+        }
+        return weights;
+    }
+}
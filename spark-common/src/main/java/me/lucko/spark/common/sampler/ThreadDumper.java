@@ -21,14 +21,12 @@
 
 package me.lucko.spark.common.sampler;
 
-import me.lucko.spark.common.util.ThreadFinder;
 import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
 
+import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -41,6 +39,9 @@ import java.util.stream.Collectors;
  */
 public interface ThreadDumper {
 
+    /** The max depth used to capture the entire stack of each thread */
+    int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
     /**
      * Generates {@link ThreadInfo} data for the sampled threads.
      *
@@ -49,6 +50,28 @@ public interface ThreadDumper {
      */
     ThreadInfo[] dumpThreads(ThreadMXBean threadBean);
 
+    /**
+     * Tests if the given thread would be included in the dumps.
+     *
+     * <p>Used by {@link ExternalEngine engines} which capture samples themselves.</p>
+     *
+     * @param threadId the id of the thread
+     * @param threadName the name of the thread
+     * @return true if the thread is included
+     */
+    default boolean isThreadIncluded(long threadId, String threadName) {
+        return true;
+    }
+
+    /**
+     * Gets the maximum number of frames captured from the top of each stack.
+     *
+     * @return the max depth, or {@link #UNLIMITED_DEPTH}
+     */
+    default int getMaxDepth() {
+        return UNLIMITED_DEPTH;
+    }
+
     /**
      * Gets metadata about the thread dumper instance.
      */
@@ -73,46 +96,113 @@ public interface ThreadDumper {
 
     /**
      * Implementation of {@link ThreadDumper} that generates data for a specific set of threads.
+     *
+     * <p>The threads are either given by id, or by name. Threads given by name are looked up
+     * again whenever threads start or die, so threads which are restarted are still included.</p>
      */
     final class Specific implements ThreadDumper {
-        private final long[] ids;
+        private final long[] ids; // null if selected by name
+        private final ThreadSelection selection; // null if selected by id
+        private final Set<String> namesLower;
+        private final int maxDepth;
 
         public Specific(long[] ids) {
+            this(ids, UNLIMITED_DEPTH);
+        }
+
+        public Specific(long[] ids, int maxDepth) {
             this.ids = ids;
+            this.selection = null;
+            this.namesLower = null;
+            this.maxDepth = maxDepth;
         }
 
         public Specific(Set<String> names) {
+            this(names, UNLIMITED_DEPTH);
+        }
+
+        public Specific(Set<String> names, int maxDepth) {
             Set<String> namesLower = names.stream().map(String::toLowerCase).collect(Collectors.toSet());
-            this.ids = new ThreadFinder().getThreads()
-                    .filter(t -> namesLower.contains(t.getName().toLowerCase()))
-                    .mapToLong(Thread::getId)
-                    .toArray();
+            this.ids = null;
+            this.selection = new ThreadSelection(t -> namesLower.contains(t.getName().toLowerCase()));
+            this.namesLower = namesLower;
+            this.maxDepth = maxDepth;
         }
 
         @Override
         public ThreadInfo[] dumpThreads(ThreadMXBean threadBean) {
-            return threadBean.getThreadInfo(this.ids, Integer.MAX_VALUE);
+            if (this.selection != null) {
+                return this.selection.dump(threadBean, this.maxDepth);
+            }
+            if (this.ids.length == 1) {
+                // the usual case (the server thread), skip the bulk lookup
+                return new ThreadInfo[]{threadBean.getThreadInfo(this.ids[0], this.maxDepth)};
+            }
+            return threadBean.getThreadInfo(this.ids, this.maxDepth);
+        }
+
+        /**
+         * Gets if the dumper selects a single thread, given by id.
+         *
+         * @return if a single thread is selected
+         */
+        public boolean isSingleThread() {
+            return this.ids != null && this.ids.length == 1;
+        }
+
+        @Override
+        public boolean isThreadIncluded(long threadId, String threadName) {
+            if (this.selection != null) {
+                Boolean selected = this.selection.isSelected(threadId);
+                return selected != null ? selected : this.namesLower.contains(threadName.toLowerCase());
+            }
+            for (long id : this.ids) {
+                if (id == threadId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int getMaxDepth() {
+            return this.maxDepth;
         }
 
         @Override
         public SamplerMetadata.ThreadDumper getMetadata() {
+            long[] ids = this.selection != null ? this.selection.getIds(ManagementFactory.getThreadMXBean()) : this.ids;
             return SamplerMetadata.ThreadDumper.newBuilder()
                     .setType(SamplerMetadata.ThreadDumper.Type.SPECIFIC)
-                    .addAllIds(Arrays.stream(this.ids).boxed().collect(Collectors.toList()))
+                    .addAllIds(Arrays.stream(ids).boxed().collect(Collectors.toList()))
+                    .setMaxDepth(this.maxDepth == UNLIMITED_DEPTH ? 0 : this.maxDepth)
                     .build();
         }
     }
 
     /**
      * Implementation of {@link ThreadDumper} that generates data for a regex matched set of threads.
+     *
+     * <p>The patterns are only matched against thread names when threads start or die (or every
+     * few seconds), and the matched threads are dumped in a single call.</p>
      */
     final class Regex implements ThreadDumper {
-        private final ThreadFinder threadFinder = new ThreadFinder();
         private final Set<Pattern> namePatterns;
-        private final Map<Long, Boolean> cache = new HashMap<>();
+        private final int maxDepth;
+        private final ThreadSelection selection;
 
         public Regex(Set<String> namePatterns) {
-            this.namePatterns = namePatterns.stream()
+            this(namePatterns, UNLIMITED_DEPTH);
+        }
+
+        public Regex(Set<String> namePatterns, int maxDepth) {
+            this.namePatterns = compilePatterns(namePatterns);
+            this.maxDepth = maxDepth;
+            this.selection = new ThreadSelection(thread -> matches(thread.getName()));
+        }
+
+        static Set<Pattern> compilePatterns(Set<String> patterns) {
+            return patterns.stream()
                     .map(regex -> {
                         try {
                             return Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
@@ -124,27 +214,29 @@ public interface ThreadDumper {
                     .collect(Collectors.toSet());
         }
 
+        private boolean matches(String threadName) {
+            for (Pattern pattern : this.namePatterns) {
+                if (pattern.matcher(threadName).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         @Override
         public ThreadInfo[] dumpThreads(ThreadMXBean threadBean) {
-            return this.threadFinder.getThreads()
-                    .filter(thread -> {
-                        Boolean result = this.cache.get(thread.getId());
-                        if (result != null) {
-                            return result;
-                        }
+            return this.selection.dump(threadBean, this.maxDepth);
+        }
 
-                        for (Pattern pattern : this.namePatterns) {
-                            if (pattern.matcher(thread.getName()).matches()) {
-                                this.cache.put(thread.getId(), true);
-                                return true;
-                            }
-                        }
-                        this.cache.put(thread.getId(), false);
-                        return false;
-                    })
-                    .map(thread -> threadBean.getThreadInfo(thread.getId(), Integer.MAX_VALUE))
-                    .filter(Objects::nonNull)
-                    .toArray(ThreadInfo[]::new);
+        @Override
+        public boolean isThreadIncluded(long threadId, String threadName) {
+            Boolean selected = this.selection.isSelected(threadId);
+            return selected != null ? selected : matches(threadName);
+        }
+
+        @Override
+        public int getMaxDepth() {
+            return this.maxDepth;
         }
 
         @Override
@@ -152,6 +244,75 @@ public interface ThreadDumper {
             return SamplerMetadata.ThreadDumper.newBuilder()
                     .setType(SamplerMetadata.ThreadDumper.Type.REGEX)
                     .addAllPatterns(this.namePatterns.stream().map(Pattern::pattern).collect(Collectors.toList()))
+                    .setMaxDepth(this.maxDepth == UNLIMITED_DEPTH ? 0 : this.maxDepth)
+                    .build();
+        }
+    }
+
+    /**
+     * Implementation of {@link ThreadDumper} that generates data for all threads, except for those
+     * excluded by name and (optionally) the JVM's own daemon threads.
+     *
+     * <p>Excluded threads are filtered out before the dump, so the JVM doesn't spend any time
+     * capturing their stacks.</p>
+     */
+    final class Filtered implements ThreadDumper {
+        private final Set<Pattern> excludedPatterns;
+        private final boolean excludeJdkThreads;
+        private final int maxDepth;
+        private final ThreadSelection selection;
+
+        public Filtered(Set<String> excludedPatterns, boolean excludeJdkThreads, int maxDepth) {
+            this.excludedPatterns = Regex.compilePatterns(excludedPatterns);
+            this.excludeJdkThreads = excludeJdkThreads;
+            this.maxDepth = maxDepth;
+            this.selection = new ThreadSelection(thread -> !isExcluded(thread.getName()) && !(excludeJdkThreads && isJdkThread(thread)));
+        }
+
+        private boolean isExcluded(String threadName) {
+            for (Pattern pattern : this.excludedPatterns) {
+                if (pattern.matcher(threadName).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Tests if the thread is one of the JVM's own daemon threads (Reference Handler,
+         * Finalizer, Signal Dispatcher, Common-Cleaner, etc), which live in the system thread group.
+         */
+        private static boolean isJdkThread(Thread thread) {
+            ThreadGroup group = thread.getThreadGroup();
+            if (!thread.isDaemon() || group == null) {
+                return false;
+            }
+            return group.getParent() == null || group.getName().equals("InnocuousThreadGroup");
+        }
+
+        @Override
+        public ThreadInfo[] dumpThreads(ThreadMXBean threadBean) {
+            return this.selection.dump(threadBean, this.maxDepth);
+        }
+
+        @Override
+        public boolean isThreadIncluded(long threadId, String threadName) {
+            Boolean selected = this.selection.isSelected(threadId);
+            return selected != null ? selected : !isExcluded(threadName);
+        }
+
+        @Override
+        public int getMaxDepth() {
+            return this.maxDepth;
+        }
+
+        @Override
+        public SamplerMetadata.ThreadDumper getMetadata() {
+            return SamplerMetadata.ThreadDumper.newBuilder()
+                    .setType(SamplerMetadata.ThreadDumper.Type.ALL)
+                    .addAllExcludedPatterns(this.excludedPatterns.stream().map(Pattern::pattern).collect(Collectors.toList()))
+                    .setExcludeJdkThreads(this.excludeJdkThreads)
+                    .setMaxDepth(this.maxDepth == UNLIMITED_DEPTH ? 0 : this.maxDepth)
                     .build();
         }
     }
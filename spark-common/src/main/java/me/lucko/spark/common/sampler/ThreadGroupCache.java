@@ -0,0 +1,95 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * A bounded cache of the group computed for each thread.
+ *
+ * <p>Entries are stored in two generations. When the current generation fills up, it becomes
+ * the previous generation and the old previous generation is discarded. Entries for threads
+ * which are still being sampled are promoted back to the current generation when they are
+ * accessed, so only the entries for dead threads are evicted.</p>
+ */
+final class ThreadGroupCache {
+
+    /** The maximum number of entries in each generation */
+    private static final int GENERATION_SIZE = 1024;
+
+    private final UnaryOperator<String> grouper;
+
+    private volatile Map<Long, Entry> current = new ConcurrentHashMap<>();
+    private volatile Map<Long, Entry> previous = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param grouper the function to compute the group from the name of a thread
+     */
+    ThreadGroupCache(UnaryOperator<String> grouper) {
+        this.grouper = grouper;
+    }
+
+    String getGroup(long threadId, String threadName) {
+        Entry entry = this.current.get(threadId);
+        if (entry == null) {
+            entry = this.previous.get(threadId);
+            if (entry != null) {
+                put(threadId, entry);
+            }
+        }
+
+        // threads may be renamed
+        if (entry != null && entry.threadName.equals(threadName)) {
+            return entry.group;
+        }
+
+        entry = new Entry(threadName, this.grouper.apply(threadName));
+        put(threadId, entry);
+        return entry.group;
+    }
+
+    private void put(long threadId, Entry entry) {
+        // we don't care about race conditions here, at worst a group is computed twice
+        Map<Long, Entry> current = this.current;
+        current.put(threadId, entry);
+        if (current.size() > GENERATION_SIZE) {
+            synchronized (this) {
+                if (this.current == current) {
+                    this.previous = current;
+                    this.current = new ConcurrentHashMap<>();
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final String threadName;
+        private final String group;
+
+        Entry(String threadName, String group) {
+            this.threadName = threadName;
+            this.group = group;
+        }
+    }
+}
@@ -22,10 +22,13 @@ package me.lucko.spark.common.sampler;
 
 import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Function for grouping threads together
@@ -55,24 +58,18 @@ public interface ThreadGrouper {
      * separated from the pool name with any of one or more of ' ', '-', or '#'.</p>
      */
     ThreadGrouper BY_POOL = new ThreadGrouper() {
-        private final Map<Long, String> cache = new ConcurrentHashMap<>();
         private final Pattern pattern = Pattern.compile("^(.*?)[-# ]+\\d+$");
-
-        @Override
-        public String getGroup(long threadId, String threadName) {
-            String group = this.cache.get(threadId);
-            if (group != null) {
-                return group;
-            }
-
+        private final ThreadGroupCache cache = new ThreadGroupCache(threadName -> {
             Matcher matcher = this.pattern.matcher(threadName);
             if (!matcher.matches()) {
                 return threadName;
             }
+            return matcher.group(1).trim() + " (Combined)";
+        });
 
-            group = matcher.group(1).trim() + " (Combined)";
-            this.cache.put(threadId, group); // we don't care about race conditions here
-            return group;
+        @Override
+        public String getGroup(long threadId, String threadName) {
+            return this.cache.getGroup(threadId, threadName);
         }
 
         @Override
@@ -97,6 +94,69 @@ public interface ThreadGrouper {
         }
     };
 
+    /**
+     * Implementation of {@link ThreadGrouper} which groups threads using user defined rules,
+     * each mapping a thread name regex to a group name. Threads which don't match any of the
+     * rules are grouped by {@link #BY_POOL}.
+     *
+     * <p>Each rule is compiled into its own pattern, and the rules are checked in order.</p>
+     */
+    final class ByRules implements ThreadGrouper {
+        private final Pattern[] patterns;
+        private final String[] groups;
+        private final ThreadGroupCache cache;
+
+        /**
+         * Creates a new rule based grouper.
+         *
+         * @param rules the rules, mapping thread name regex to group name, in order
+         * @throws PatternSyntaxException if one of the patterns is invalid
+         */
+        public ByRules(Map<String, String> rules) {
+            this.patterns = new Pattern[rules.size()];
+            this.groups = new String[rules.size()];
+            int i = 0;
+            for (Map.Entry<String, String> rule : rules.entrySet()) {
+                this.patterns[i] = Pattern.compile(rule.getKey(), Pattern.CASE_INSENSITIVE);
+                this.groups[i++] = rule.getValue();
+            }
+            this.cache = new ThreadGroupCache(this::computeGroup);
+        }
+
+        private String computeGroup(String threadName) {
+            for (int i = 0; i < this.patterns.length; i++) {
+                if (this.patterns[i].matcher(threadName).matches()) {
+                    return this.groups[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String getGroup(long threadId, String threadName) {
+            String group = this.cache.getGroup(threadId, threadName);
+            return group != null ? group : BY_POOL.getGroup(threadId, threadName);
+        }
+
+        @Override
+        public SamplerMetadata.DataAggregator.ThreadGrouper asProto() {
+            return SamplerMetadata.DataAggregator.ThreadGrouper.CUSTOM;
+        }
+
+        @Override
+        public List<SamplerMetadata.DataAggregator.ThreadGrouperRule> rulesAsProto() {
+            List<SamplerMetadata.DataAggregator.ThreadGrouperRule> rules = new ArrayList<>(this.patterns.length);
+            for (int i = 0; i < this.patterns.length; i++) {
+                rules.add(SamplerMetadata.DataAggregator.ThreadGrouperRule.newBuilder()
+                        .setPattern(this.patterns[i].pattern())
+                        .setGroup(this.groups[i])
+                        .build()
+                );
+            }
+            return rules;
+        }
+    }
+
     /**
      * Gets the group for the given thread.
      *
@@ -108,4 +168,13 @@ public interface ThreadGrouper {
 
     SamplerMetadata.DataAggregator.ThreadGrouper asProto();
 
+    /**
+     * Gets the rules used to group threads, if the grouper is user defined.
+     *
+     * @return the rules, in the order they are checked
+     */
+    default List<SamplerMetadata.DataAggregator.ThreadGrouperRule> rulesAsProto() {
+        return Collections.emptyList();
+    }
+
 }
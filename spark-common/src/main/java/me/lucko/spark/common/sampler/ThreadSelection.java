@@ -0,0 +1,129 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.common.util.ThreadFinder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * The ids of the threads accepted by a predicate.
+ *
+ * <p>The predicate is only evaluated when the selection is refreshed - after a thread has
+ * started or died, or at least every few seconds (to pick up renamed threads) - rather than
+ * for every dump.</p>
+ */
+final class ThreadSelection {
+
+    /** The maximum time between refreshes, in nanoseconds */
+    private static final long MAX_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final ThreadFinder threadFinder = new ThreadFinder();
+    private final Predicate<Thread> predicate;
+
+    // guarded by 'this'
+    /** The selected thread ids, sorted */
+    private long[] ids = new long[0];
+    /** The highest thread id seen at the last refresh */
+    private long maxSeenId = -1;
+    /** The number of threads started when the selection was last refreshed */
+    private long startedThreadCount = -1;
+    /** The {@link System#nanoTime()} of the last refresh */
+    private long lastRefresh = 0;
+    /** If a selected thread has died since the last refresh */
+    private boolean stale = true;
+
+    ThreadSelection(Predicate<Thread> predicate) {
+        this.predicate = predicate;
+    }
+
+    /**
+     * Dumps the selected threads, in a single call to the thread bean.
+     *
+     * @param threadBean the thread bean
+     * @param maxDepth the maximum number of frames to capture, from the top of each stack
+     * @return the thread info instances
+     */
+    ThreadInfo[] dump(ThreadMXBean threadBean, int maxDepth) {
+        ThreadInfo[] threadInfos = threadBean.getThreadInfo(getIds(threadBean), maxDepth);
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo == null) {
+                // a selected thread has died
+                synchronized (this) {
+                    this.stale = true;
+                }
+                return Arrays.stream(threadInfos).filter(Objects::nonNull).toArray(ThreadInfo[]::new);
+            }
+        }
+        return threadInfos;
+    }
+
+    /**
+     * Gets the ids of the selected threads, refreshing the selection if necessary.
+     *
+     * @param threadBean the thread bean
+     * @return the ids
+     */
+    synchronized long[] getIds(ThreadMXBean threadBean) {
+        refreshIfNecessary(threadBean);
+        return this.ids;
+    }
+
+    /**
+     * Tests if the thread is selected, refreshing the selection if necessary.
+     *
+     * @param threadId the thread id
+     * @return true if selected, false if rejected, or null if the thread isn't known (it has
+     *         died, or started since the selection was refreshed)
+     */
+    synchronized Boolean isSelected(long threadId) {
+        refreshIfNecessary(this.threadBean);
+        if (Arrays.binarySearch(this.ids, threadId) >= 0) {
+            return Boolean.TRUE;
+        }
+        // thread ids are assigned in increasing order
+        if (threadId >= 0 && threadId <= this.maxSeenId) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    // guarded by 'this'
+    private void refreshIfNecessary(ThreadMXBean threadBean) {
+        long startedThreadCount = threadBean.getTotalStartedThreadCount();
+        long now = System.nanoTime();
+        if (this.stale || startedThreadCount != this.startedThreadCount || now - this.lastRefresh > MAX_REFRESH_INTERVAL) {
+            this.stale = false;
+            this.startedThreadCount = startedThreadCount;
+            this.lastRefresh = now;
+
+            Thread[] threads = this.threadFinder.getThreads().toArray(Thread[]::new);
+            this.ids = Arrays.stream(threads).filter(this.predicate).mapToLong(Thread::getId).sorted().toArray();
+            this.maxSeenId = Arrays.stream(threads).mapToLong(Thread::getId).max().orElse(-1);
+        }
+    }
+}
@@ -21,17 +21,42 @@
 package me.lucko.spark.common.sampler.aggregator;
 
 import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.AbstractNode;
+import me.lucko.spark.common.sampler.node.FrameTable;
+import me.lucko.spark.common.sampler.node.StackTable;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 
+import java.lang.management.LockInfo;
 import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.function.BiFunction;
 
 public abstract class AbstractDataAggregator implements DataAggregator {
 
-    /** A map of root stack nodes for each thread with sampling data */
-    protected final Map<String, ThreadNode> threadData = new ConcurrentHashMap<>();
+    /** The number of shards thread groups are split between */
+    public static final int SHARD_COUNT = 4;
+
+    /** The frames used to mark the state of a thread, indexed by {@link Thread.State#ordinal()} */
+    private static final StackTraceElement[] STATE_FRAMES = Arrays.stream(Thread.State.values())
+            .map(state -> new StackTraceElement("[" + state.name() + "]", "", null, -1))
+            .toArray(StackTraceElement[]::new);
+    private static final StackTraceElement NATIVE_STATE_FRAME = new StackTraceElement("[NATIVE]", "", null, -1);
+
+    /** The maximum number of frames from the stack of a lock owner to add above a lock frame */
+    private static final int MAX_LOCK_OWNER_DEPTH = 32;
+
+    /** The table used to intern stack frames into ids */
+    protected final FrameTable frameTable = new FrameTable();
+
+    /** The table used to intern whole stacks into ids, replaced as often as the shards flush */
+    private volatile StackTable stackTable = new StackTable();
+    private volatile long stackTableCreated = System.nanoTime();
+
+    /** The shards which own the root stack nodes for each thread with sampling data, created when first used */
+    private volatile AggregatorShard[] shards;
 
     /** The worker pool for inserting stack nodes */
     protected final ExecutorService workerPool;
@@ -48,6 +73,12 @@ public abstract class AbstractDataAggregator implements DataAggregator {
     /** If threads executing native code should be ignored */
     private final boolean ignoreNative;
 
+    /** If lock frames should be added to the stacks of threads waiting on a lock */
+    private boolean lockFrames = false;
+
+    /** If a frame for the state of the thread should be added to the root of each stack */
+    private boolean threadStateFrames = false;
+
     public AbstractDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative) {
         this.workerPool = workerPool;
         this.threadGrouper = threadGrouper;
@@ -56,28 +87,317 @@ public abstract class AbstractDataAggregator implements DataAggregator {
         this.ignoreNative = ignoreNative;
     }
 
-    protected ThreadNode getNode(String group) {
-        ThreadNode node = this.threadData.get(group); // fast path
-        if (node != null) {
-            return node;
+    @Override
+    public void setLockFrames(boolean lockFrames) {
+        this.lockFrames = lockFrames;
+    }
+
+    @Override
+    public void setThreadStateFrames(boolean threadStateFrames) {
+        this.threadStateFrames = threadStateFrames;
+    }
+
+    /**
+     * Gets the index of the shard which owns the given thread group.
+     *
+     * <p>The result is stable between restarts.</p>
+     *
+     * @param group the thread group
+     * @return the shard index
+     */
+    protected static int getShardIndex(String group) {
+        int hash = group.hashCode() * 0x9E3779B9;
+        return (hash >>> 16) % SHARD_COUNT;
+    }
+
+    /**
+     * Creates a new node for the given thread group.
+     *
+     * <p>Called by the owning shard, the first time the group is sampled.</p>
+     *
+     * @param shard the index of the shard which will own the node
+     * @param group the thread group
+     * @return a new node
+     */
+    protected ThreadNode createNode(int shard, String group) {
+        return new ThreadNode(group, this.frameTable);
+    }
+
+    /**
+     * Adds a previously created node to the shard which owns it.
+     *
+     * <p>Must be called before any data is inserted.</p>
+     *
+     * @param node the node
+     */
+    protected void restoreNode(ThreadNode node) {
+        getShards()[getShardIndex(node.getThreadName())].restore(node);
+    }
+
+    private AggregatorShard[] getShards() {
+        AggregatorShard[] shards = this.shards;
+        if (shards == null) {
+            synchronized (this) {
+                shards = this.shards;
+                if (shards == null) {
+                    shards = this.shards = createShards(this::createNode);
+                }
+            }
         }
-        return this.threadData.computeIfAbsent(group, ThreadNode::new);
+        return shards;
     }
 
-    protected void writeData(ThreadInfo threadInfo) {
+    /**
+     * Creates a set of {@link #SHARD_COUNT} shards, drained by the worker pool.
+     *
+     * @param nodeFactory the function used to create the node for a group, given the shard index
+     * @return the shards
+     */
+    AggregatorShard[] createShards(BiFunction<Integer, String, ThreadNode> nodeFactory) {
+        AggregatorShard[] shards = new AggregatorShard[SHARD_COUNT];
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            shards[i] = new AggregatorShard(this.workerPool, group -> nodeFactory.apply(shard, group));
+        }
+        return shards;
+    }
+
+    /**
+     * Tests if the given thread info should be included in the output.
+     *
+     * @param threadInfo the thread info
+     * @return true if the data should be included
+     */
+    protected boolean shouldInclude(ThreadInfo threadInfo) {
         if (this.ignoreSleeping && isSleeping(threadInfo)) {
-            return;
+            return false;
         }
         if (this.ignoreNative && threadInfo.isInNative()) {
-            return;
+            return false;
         }
+        return true;
+    }
 
+    @Override
+    public void insertData(ThreadInfo[] threadInfos, long captureTime, long time, long[] weights, int tick) {
+        // resolve the samples before any locks are taken, so the thread infos aren't retained
+        insertBatch(resolveBatch(threadInfos, captureTime, time, weights, tick));
+    }
+
+    @Override
+    public void insertData(long threadId, String threadName, StackTraceElement[] stack, long captureTime, long time) {
+        SampleBatch batch = newBatch(1, captureTime, time, UNKNOWN_TICK);
         try {
-            ThreadNode node = getNode(this.threadGrouper.getGroup(threadInfo.getThreadId(), threadInfo.getThreadName()));
-            node.log(threadInfo.getStackTrace(), this.interval);
+            batch.add(this.threadGrouper.getGroup(threadId, threadName), batch.stackTable().intern(batch.frameTable(), stack), time);
         } catch (Exception e) {
             e.printStackTrace();
+            return;
+        }
+        insertBatch(batch);
+    }
+
+    /**
+     * Creates an empty batch, for the samples from a dump to be resolved into.
+     *
+     * <p>The batch determines the tables the samples are interned into.</p>
+     *
+     * @param capacity the maximum number of samples
+     * @param captureTime the time the dump was captured, in milliseconds since the epoch
+     * @param time the wall-clock time the dump represents, in microseconds
+     * @param tick the tick the dump was captured during
+     * @return a new batch
+     */
+    SampleBatch newBatch(int capacity, long captureTime, long time, int tick) {
+        return new SampleBatch(capacity, captureTime, time, tick, this.frameTable, getStackTable());
+    }
+
+    /**
+     * Gets the table to intern stacks into.
+     *
+     * <p>The table is replaced by an empty one every {@link AggregatorShard#FLUSH_INTERVAL}.
+     * Once the samples which refer to the old table have been flushed into the call trees,
+     * nothing refers to it, so stacks which are no longer sampled don't stay on the heap.</p>
+     *
+     * @return the stack table
+     */
+    private StackTable getStackTable() {
+        long now = System.nanoTime();
+        if (now - this.stackTableCreated > AggregatorShard.FLUSH_INTERVAL) {
+            synchronized (this) {
+                if (now - this.stackTableCreated > AggregatorShard.FLUSH_INTERVAL) {
+                    this.stackTable = new StackTable();
+                    this.stackTableCreated = now;
+                }
+            }
+        }
+        return this.stackTable;
+    }
+
+    /**
+     * Inserts a batch of resolved samples.
+     *
+     * @param batch the samples
+     */
+    abstract void insertBatch(SampleBatch batch);
+
+    /**
+     * Resolves the group and stack of each included thread in a dump.
+     *
+     * @param threadInfos the thread infos
+     * @param captureTime the time the dump was captured, in milliseconds since the epoch
+     * @param time the wall-clock time the dump represents, in microseconds
+     * @param weights the weight of each sample, or null to weight each sample by {@code time}
+     * @param tick the tick the dump was captured during
+     * @return the resolved samples
+     */
+    SampleBatch resolveBatch(ThreadInfo[] threadInfos, long captureTime, long time, long[] weights, int tick) {
+        SampleBatch batch = newBatch(threadInfos.length, captureTime, time, tick);
+        Map<Long, ThreadInfo> threads = this.lockFrames ? indexThreads(threadInfos) : null;
+        for (int i = 0; i < threadInfos.length; i++) {
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo == null || threadInfo.getThreadName() == null || threadInfo.getStackTrace() == null || !shouldInclude(threadInfo)) {
+                continue;
+            }
+
+            long weight = weights == null ? time : weights[i];
+            if (weight <= 0) {
+                // e.g. the thread didn't use any cpu time since the last sample
+                continue;
+            }
+
+            try {
+                String group = this.threadGrouper.getGroup(threadInfo.getThreadId(), threadInfo.getThreadName());
+                batch.add(group, internStack(threadInfo, threads, batch), weight);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return batch;
+    }
+
+    private int internStack(ThreadInfo threadInfo, Map<Long, ThreadInfo> threads, SampleBatch batch) {
+        StackTraceElement[] stack = threads == null ? threadInfo.getStackTrace() : withLockFrames(threadInfo, threads);
+        if (this.threadStateFrames) {
+            stack = withThreadStateFrame(threadInfo, stack);
+        }
+        return batch.stackTable().intern(batch.frameTable(), stack);
+    }
+
+    private static Map<Long, ThreadInfo> indexThreads(ThreadInfo[] threadInfos) {
+        Map<Long, ThreadInfo> threads = new HashMap<>();
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo != null) {
+                threads.put(threadInfo.getThreadId(), threadInfo);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Gets the stack of a thread, extended with a frame for the lock it is waiting on (if any),
+     * and then the stack of the thread which owns the lock at that moment.
+     *
+     * <p>The waiting thread's own stack stays at the root, with the lock frame above it and the
+     * owner's stack above that. Only the top {@link #MAX_LOCK_OWNER_DEPTH} frames of the owner's
+     * stack are added, and never so many that the waiting thread's frames would be truncated.</p>
+     *
+     * @param threadInfo the thread info
+     * @param threads the other threads in the dump, by id
+     * @return the stack, top of the stack first
+     */
+    private static StackTraceElement[] withLockFrames(ThreadInfo threadInfo, Map<Long, ThreadInfo> threads) {
+        StackTraceElement[] stack = threadInfo.getStackTrace();
+        LockInfo lock = threadInfo.getLockInfo();
+        if (lock == null) {
+            return stack;
+        }
+
+        String ownerName = threadInfo.getLockOwnerName();
+        StackTraceElement lockFrame = new StackTraceElement(lock.getClassName(), ownerName == null ? "<waiting>" : "<owned by " + ownerName + ">", null, -1);
+
+        ThreadInfo owner = threads.get(threadInfo.getLockOwnerId());
+        StackTraceElement[] ownerStack = owner == null || owner.getStackTrace() == null ? new StackTraceElement[0] : owner.getStackTrace();
+
+        // stacks are truncated from the top when interned, so leave room for the waiting thread's frames
+        int ownerDepth = Math.min(ownerStack.length, Math.min(MAX_LOCK_OWNER_DEPTH, AbstractNode.MAX_STACK_DEPTH - 1 - stack.length));
+        if (ownerDepth < 0) {
+            return stack;
+        }
+
+        // top of the stack first: [owner (top frames)..., lock, waiter...]
+        StackTraceElement[] result = new StackTraceElement[ownerDepth + 1 + stack.length];
+        System.arraycopy(ownerStack, 0, result, 0, ownerDepth);
+        result[ownerDepth] = lockFrame;
+        System.arraycopy(stack, 0, result, ownerDepth + 1, stack.length);
+        return result;
+    }
+
+    /**
+     * Gets the stack of a thread, with a frame for the state of the thread added at the root,
+     * so the samples for each state form separate trees.
+     *
+     * @param threadInfo the thread info
+     * @param stack the stack, top of the stack first
+     * @return the stack, top of the stack first
+     */
+    private static StackTraceElement[] withThreadStateFrame(ThreadInfo threadInfo, StackTraceElement[] stack) {
+        StackTraceElement stateFrame = threadInfo.isInNative() ? NATIVE_STATE_FRAME : STATE_FRAMES[threadInfo.getThreadState().ordinal()];
+        StackTraceElement[] result = Arrays.copyOf(stack, stack.length + 1);
+        result[stack.length] = stateFrame;
+        return result;
+    }
+
+    /**
+     * Writes a batch of samples to the shards which own them, taking each shard's lock once.
+     *
+     * @param batch the samples
+     */
+    void writeData(SampleBatch batch) {
+        writeData(batch, getShards());
+    }
+
+    /**
+     * Writes a batch of samples to the shards in the given set which own them.
+     *
+     * @param batch the samples
+     * @param shards the shards, as created by {@link #createShards(BiFunction)}
+     */
+    static void writeData(SampleBatch batch, AggregatorShard[] shards) {
+        int size = batch.size();
+        if (size == 0) {
+            return;
+        }
+
+        int[] shardIndexes = new int[size];
+        int shardMask = 0;
+        for (int i = 0; i < size; i++) {
+            int shard = getShardIndex(batch.group(i));
+            shardIndexes[i] = shard;
+            shardMask |= 1 << shard;
+        }
+
+        for (int shard = 0; shard < shards.length; shard++) {
+            if ((shardMask & (1 << shard)) != 0) {
+                shards[shard].addAll(batch, shardIndexes, shard);
+            }
+        }
+    }
+
+    /**
+     * Inserts any pending samples into the thread nodes, and merges the data from each shard.
+     *
+     * <p>Should only be called once the worker pool has terminated. If it hasn't, samples which
+     * are still being inserted are left out of the output.</p>
+     *
+     * @return the output data
+     */
+    protected Map<String, ThreadNode> flushData() {
+        Map<String, ThreadNode> threadData = new HashMap<>();
+        for (AggregatorShard shard : getShards()) {
+            // each group is only ever assigned to one shard
+            threadData.putAll(shard.complete());
         }
+        return threadData;
     }
 
     private static boolean isSleeping(ThreadInfo thread) {
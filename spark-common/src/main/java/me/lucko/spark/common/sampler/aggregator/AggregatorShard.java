@@ -0,0 +1,247 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.aggregator;
+
+import me.lucko.spark.common.sampler.node.StackTable;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Owns the {@link ThreadNode}s for a subset of thread groups.
+ *
+ * <p>Samples are appended to a small buffer, which is drained into the nodes by at most
+ * one worker at a time. This means the node trees are confined to a single writer, and
+ * don't need to pay for any synchronization themselves.</p>
+ */
+final class AggregatorShard implements Runnable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** How often pending samples are flushed into the node trees */
+    static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    /** The executor used to drain the shard */
+    private final Executor executor;
+
+    /** The function used to create new nodes */
+    private final Function<String, ThreadNode> nodeFactory;
+
+    /** The thread nodes owned by this shard - only accessed by the draining thread */
+    private final Map<String, ThreadNode> threadData = new HashMap<>();
+
+    /** Held whilst samples are drained into the node trees */
+    private final Object drainLock = new Object();
+
+    /** If the data has been handed off by {@link #complete()}, guarded by 'drainLock' */
+    private boolean completed = false;
+
+    /** If a drain of this shard is scheduled or running */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /** The time when pending samples were last flushed - only accessed by the draining thread */
+    private long lastFlush = System.nanoTime();
+
+    // buffered samples, guarded by 'this'
+    private String[] groups = new String[INITIAL_CAPACITY];
+    private StackTable[] stackTables = new StackTable[INITIAL_CAPACITY];
+    private int[] stackIds = new int[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // the buffers being drained, only accessed by the draining thread
+    private String[] drainGroups = new String[INITIAL_CAPACITY];
+    private StackTable[] drainStackTables = new StackTable[INITIAL_CAPACITY];
+    private int[] drainStackIds = new int[INITIAL_CAPACITY];
+    private long[] drainTimes = new long[INITIAL_CAPACITY];
+
+    AggregatorShard(Executor executor, Function<String, ThreadNode> nodeFactory) {
+        this.executor = executor;
+        this.nodeFactory = nodeFactory;
+    }
+
+    /**
+     * Adds the samples in a batch which belong to this shard, scheduling a drain if necessary.
+     *
+     * @param batch the batch
+     * @param shardIndexes the shard index of each sample in the batch
+     * @param shardIndex the index of this shard
+     */
+    void addAll(SampleBatch batch, int[] shardIndexes, int shardIndex) {
+        StackTable stackTable = batch.stackTable();
+        synchronized (this) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (shardIndexes[i] == shardIndex) {
+                    append(batch.group(i), stackTable, batch.stackId(i), batch.weight(i));
+                }
+            }
+        }
+        schedule();
+    }
+
+    // guarded by 'this'
+    private void append(String group, StackTable stackTable, int stackId, long time) {
+        if (this.size == this.stackIds.length) {
+            int capacity = this.size * 2;
+            this.groups = Arrays.copyOf(this.groups, capacity);
+            this.stackTables = Arrays.copyOf(this.stackTables, capacity);
+            this.stackIds = Arrays.copyOf(this.stackIds, capacity);
+            this.times = Arrays.copyOf(this.times, capacity);
+        }
+        this.groups[this.size] = group;
+        this.stackTables[this.size] = stackTable;
+        this.stackIds[this.size] = stackId;
+        this.times[this.size] = time;
+        this.size++;
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the executor has been shutdown - the data will be drained by complete()
+                this.scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Adds an existing node to the shard.
+     *
+     * @param node the node
+     */
+    void restore(ThreadNode node) {
+        this.threadData.put(node.getThreadName(), node);
+    }
+
+    @Override
+    public void run() {
+        do {
+            drain();
+            this.scheduled.set(false);
+        } while (hasPending() && this.scheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Drains any remaining samples and returns the data held by the shard.
+     *
+     * <p>Should be called once the executor has terminated. If it hasn't, any drain already
+     * in progress finishes first, and samples added afterwards are discarded, so the returned
+     * data is never modified concurrently.</p>
+     *
+     * @return the thread data
+     */
+    Map<String, ThreadNode> complete() {
+        synchronized (this.drainLock) {
+            if (!this.completed) {
+                drain();
+                for (ThreadNode node : this.threadData.values()) {
+                    node.flush();
+                }
+                this.completed = true;
+            }
+            return this.threadData;
+        }
+    }
+
+    /**
+     * Drains any pending samples and passes the data held by the shard to the given reader.
+     *
+     * <p>Unlike {@link #complete()}, the shard continues to accept samples afterwards. The data
+     * is only valid for the duration of the call, as it isn't modified whilst the reader runs.</p>
+     *
+     * @param reader the reader
+     */
+    void read(Consumer<Map<String, ThreadNode>> reader) {
+        synchronized (this.drainLock) {
+            drain0();
+            for (ThreadNode node : this.threadData.values()) {
+                node.flush();
+            }
+            reader.accept(this.threadData);
+        }
+    }
+
+    private synchronized boolean hasPending() {
+        return this.size != 0;
+    }
+
+    private void drain() {
+        synchronized (this.drainLock) {
+            drain0();
+        }
+    }
+
+    // guarded by 'drainLock'
+    private void drain0() {
+        int size;
+        synchronized (this) {
+            // swap the buffers
+            String[] groups = this.groups;
+            StackTable[] stackTables = this.stackTables;
+            int[] stackIds = this.stackIds;
+            long[] times = this.times;
+            size = this.size;
+
+            this.groups = this.drainGroups;
+            this.stackTables = this.drainStackTables;
+            this.stackIds = this.drainStackIds;
+            this.times = this.drainTimes;
+            this.size = 0;
+
+            this.drainGroups = groups;
+            this.drainStackTables = stackTables;
+            this.drainStackIds = stackIds;
+            this.drainTimes = times;
+        }
+
+        if (this.completed) {
+            // the data has already been handed off, it can't be modified any further
+            Arrays.fill(this.drainGroups, 0, size, null);
+            Arrays.fill(this.drainStackTables, 0, size, null);
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+            ThreadNode node = this.threadData.computeIfAbsent(this.drainGroups[i], this.nodeFactory);
+            node.log(this.drainStackTables[i], this.drainStackIds[i], this.drainTimes[i]);
+            this.drainGroups[i] = null;
+            this.drainStackTables[i] = null;
+        }
+
+        // periodically flush pending samples, so the trees don't fall too far behind
+        long now = System.nanoTime();
+        if (now - this.lastFlush > FLUSH_INTERVAL) {
+            this.lastFlush = now;
+            for (ThreadNode node : this.threadData.values()) {
+                node.flush();
+            }
+        }
+    }
+}
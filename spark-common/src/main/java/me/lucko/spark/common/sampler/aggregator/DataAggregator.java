@@ -31,23 +31,81 @@ import java.util.Map;
  */
 public interface DataAggregator {
 
+    /** Marks a dump which wasn't captured during a known tick */
+    int UNKNOWN_TICK = Integer.MIN_VALUE;
+
     /**
      * Forms the output data
      *
+     * <p>The worker pool should be shut down and terminated first. Samples which are
+     * still being inserted by a worker are left out of the output.</p>
+     *
      * @return the output data
      */
     Map<String, ThreadNode> getData();
 
     /**
-     * Inserts sampling data into this aggregator
+     * Inserts the sampling data from a single thread dump into this aggregator, with
+     * each sample given its own weight.
+     *
+     * <p>Dumps may be inserted some time after they were captured, so the tick they were
+     * captured at and during are recorded with them.</p>
+     *
+     * @param threadInfos the thread infos
+     * @param captureTime the time the dump was captured, in milliseconds since the epoch
+     * @param time the wall-clock time the dump represents, in microseconds
+     * @param weights the weight of each sample, or null to weight each sample by {@code time}
+     * @param tick the tick the dump was captured during, or {@link #UNKNOWN_TICK}
+     */
+    void insertData(ThreadInfo[] threadInfos, long captureTime, long time, long[] weights, int tick);
+
+    /**
+     * Inserts a single sample captured by an {@link me.lucko.spark.common.sampler.ExternalEngine external engine}.
+     *
+     * @param threadId the id of the sampled thread
+     * @param threadName the name of the sampled thread
+     * @param stack the stack, top of the stack first
+     * @param captureTime the time the sample was captured, in milliseconds since the epoch
+     * @param time the time the sample represents, in microseconds
+     */
+    void insertData(long threadId, String threadName, StackTraceElement[] stack, long captureTime, long time);
+
+    /**
+     * Sets if the stacks of threads waiting on a lock should be extended with a frame for the
+     * lock, followed by the stack of the thread which owns it.
+     *
+     * <p>Must be called before any data is inserted.</p>
+     *
+     * @param lockFrames if lock frames should be added
+     */
+    default void setLockFrames(boolean lockFrames) {
+
+    }
+
+    /**
+     * Sets if the stacks of sampled threads should begin with a frame for the state
+     * of the thread, e.g. {@code [RUNNABLE]}, {@code [BLOCKED]} or {@code [NATIVE]}.
+     *
+     * <p>Must be called before any data is inserted.</p>
      *
-     * @param threadInfo the thread info
+     * @param threadStateFrames if thread state frames should be added
      */
-    void insertData(ThreadInfo threadInfo);
+    default void setThreadStateFrames(boolean threadStateFrames) {
+
+    }
 
     /**
      * Gets metadata about the data aggregator instance.
      */
     SamplerMetadata.DataAggregator getMetadata();
 
+    /**
+     * Releases any resources held by the aggregator.
+     *
+     * @param discard if any data persisted by the aggregator should be deleted
+     */
+    default void close(boolean discard) {
+
+    }
+
 }
@@ -0,0 +1,307 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.aggregator;
+
+import com.google.common.io.CountingInputStream;
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.FrameTable;
+import me.lucko.spark.common.sampler.node.MappedCallTree;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+/**
+ * Implementation of {@link DataAggregator} which stores the sampled call trees in
+ * memory-mapped files, outside of the Java heap.
+ *
+ * <p>The data persists between restarts - if existing data is found in the storage directory
+ * when the aggregator is created, sampling resumes from where it left off.</p>
+ *
+ * <p>The storage directory contains:</p>
+ * <ul>
+ *     <li>{@code meta.dat} - the format version, shard count, original start time, and the
+ *     mode, value unit and interval the data was sampled with</li>
+ *     <li>{@code frames.dat} - an append-only dictionary of interned frames</li>
+ *     <li>{@code groups.dat} - an append-only dictionary of thread group names</li>
+ *     <li>{@code shard-N.dat} - a {@link MappedCallTree} for each shard</li>
+ * </ul>
+ */
+public class MappedDataAggregator extends AbstractDataAggregator {
+    private static final int MAGIC = 0x5350524B; // "SPRK"
+    private static final int VERSION = 2;
+
+    /** The directory the data is stored in */
+    private final Path directory;
+
+    /** The time when sampling first began, including before any restarts */
+    private final long startTime;
+
+    /** The call tree for each shard */
+    private final MappedCallTree[] trees = new MappedCallTree[SHARD_COUNT];
+
+    /** The id of each known thread group */
+    private final Map<String, Integer> groupIds = new ConcurrentHashMap<>();
+    private int nextGroupId; // guarded by 'this'
+
+    // appenders for the dictionaries
+    private final DataOutputStream framesOut;
+    private final DataOutputStream groupsOut;
+
+    /**
+     * Creates a new mapped data aggregator, resuming from any data already in the directory.
+     *
+     * @param directory the directory to store the data in
+     * @param mode the mode samples are weighted by
+     * @throws IOException if the data can't be opened, or was sampled with a different mode or interval
+     */
+    public MappedDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative, Path directory, SamplerMode mode) throws IOException {
+        super(workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative);
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        Path metaFile = directory.resolve("meta.dat");
+        if (Files.exists(metaFile)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(metaFile))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Unrecognised sampler data in " + directory);
+                }
+                if (in.readInt() != VERSION || in.readInt() != SHARD_COUNT) {
+                    throw new IOException("Sampler data in " + directory + " was created with an incompatible version of spark");
+                }
+                this.startTime = in.readLong();
+
+                // mixing samples with different weights would silently corrupt the data
+                String dataMode = in.readUTF();
+                int dataUnit = in.readInt();
+                int dataInterval = in.readInt();
+                if (!dataMode.equals(mode.name()) || dataUnit != mode.getUnit().getNumber()) {
+                    throw new IOException("Sampler data in " + directory + " was sampled in the " + dataMode.toLowerCase() + " mode, not " + mode.name().toLowerCase());
+                }
+                if (dataInterval != interval) {
+                    throw new IOException("Sampler data in " + directory + " was sampled at an interval of " + (dataInterval / 1000d) + "ms, not " + (interval / 1000d) + "ms");
+                }
+            }
+        } else {
+            this.startTime = System.currentTimeMillis();
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(metaFile))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(SHARD_COUNT);
+                out.writeLong(this.startTime);
+                out.writeUTF(mode.name());
+                out.writeInt(mode.getUnit().getNumber());
+                out.writeInt(interval);
+            }
+        }
+
+        // load the dictionaries, in id order
+        Path framesFile = directory.resolve("frames.dat");
+        readEntries(framesFile, in -> this.frameTable.intern(in.readUTF(), in.readUTF(), in.readInt()));
+
+        Path groupsFile = directory.resolve("groups.dat");
+        List<String> groupNames = new ArrayList<>();
+        readEntries(groupsFile, in -> groupNames.add(in.readUTF()));
+        for (int i = 0; i < groupNames.size(); i++) {
+            this.groupIds.put(groupNames.get(i), i);
+        }
+        this.nextGroupId = groupNames.size();
+
+        // open the trees, and restore the nodes for any groups already present
+        try {
+            for (int i = 0; i < this.trees.length; i++) {
+                MappedCallTree tree = new MappedCallTree(directory.resolve("shard-" + i + ".dat"));
+                this.trees[i] = tree;
+
+                for (int groupId : tree.getGroupIds()) {
+                    if (groupId >= groupNames.size()) {
+                        // the data can't be attributed, and the id would be reused by the next new group
+                        throw new IOException("Sampler data in " + directory + " is missing the name of thread group #" + groupId);
+                    }
+                    restoreNode(new ThreadNode(groupNames.get(groupId), this.frameTable, tree, tree.resolveGroupRoot(groupId)));
+                }
+            }
+        } catch (IOException e) {
+            for (MappedCallTree tree : this.trees) {
+                if (tree != null) {
+                    try {
+                        tree.close();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+            }
+            throw e;
+        }
+
+        this.framesOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(framesFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        this.groupsOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(groupsFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        this.frameTable.setListener(this::writeFrame);
+    }
+
+    /**
+     * Gets the time when sampling first began, including before any restarts.
+     *
+     * @return the start time
+     */
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    @Override
+    public SamplerMetadata.DataAggregator getMetadata() {
+        return SamplerMetadata.DataAggregator.newBuilder()
+                .setType(SamplerMetadata.DataAggregator.Type.MAPPED)
+                .setThreadGrouper(this.threadGrouper.asProto())
+                .addAllThreadGrouperRules(this.threadGrouper.rulesAsProto())
+                .build();
+    }
+
+    @Override
+    void insertBatch(SampleBatch batch) {
+        writeData(batch);
+    }
+
+    @Override
+    protected ThreadNode createNode(int shard, String group) {
+        int groupId = this.groupIds.computeIfAbsent(group, this::writeGroup);
+        MappedCallTree tree = this.trees[shard];
+        return new ThreadNode(group, this.frameTable, tree, tree.resolveGroupRoot(groupId));
+    }
+
+    @Override
+    public Map<String, ThreadNode> getData() {
+        Map<String, ThreadNode> data = flushData();
+        for (MappedCallTree tree : this.trees) {
+            tree.force();
+        }
+        return data;
+    }
+
+    @Override
+    public void close(boolean discard) {
+        if (!discard) {
+            // make sure any pending samples are written before closing
+            getData();
+        }
+
+        this.frameTable.setListener(null);
+        try {
+            this.framesOut.close();
+            this.groupsOut.close();
+            for (MappedCallTree tree : this.trees) {
+                tree.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (discard) {
+            try (Stream<Path> files = Files.list(this.directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+                Files.delete(this.directory);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // called whilst holding the frame table lock
+    private void writeFrame(FrameTable.Frame frame) {
+        try {
+            this.framesOut.writeUTF(frame.getClassName());
+            this.framesOut.writeUTF(frame.getMethodName());
+            this.framesOut.writeInt(frame.getLineNumber());
+            this.framesOut.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized int writeGroup(String group) {
+        try {
+            this.groupsOut.writeUTF(group);
+            this.groupsOut.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this.nextGroupId++;
+    }
+
+    /**
+     * Reads each entry in a dictionary file.
+     *
+     * <p>If the file ends with a partially written entry, it is truncated to the end of the
+     * last complete entry, so entries appended afterwards can be read back.</p>
+     *
+     * @param file the file
+     * @param reader the function to read an entry
+     * @throws IOException if an io error occurs
+     */
+    private static void readEntries(Path file, EntryReader reader) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        long length = Files.size(file);
+        long complete = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            DataInputStream in = new DataInputStream(counter);
+            while (complete < length) {
+                try {
+                    reader.read(in);
+                } catch (EOFException e) {
+                    // the process stopped whilst the entry was being written
+                    break;
+                }
+                complete = counter.getCount();
+            }
+        }
+
+        if (complete < length) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(complete);
+            }
+        }
+    }
+
+    private interface EntryReader {
+        void read(DataInputStream in) throws IOException;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.aggregator;
+
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.FrameTable;
+import me.lucko.spark.common.sampler.node.StackTable;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link DataAggregator} which only retains the data sampled within a
+ * rolling window of time.
+ *
+ * <p>Samples are recorded into a ring of time buckets, chosen by the time each dump was
+ * captured. Each bucket has its own shards of call trees, and its own tables of interned
+ * frames and stacks. When a bucket slot is reused, everything it held is discarded, so the
+ * memory used is bounded by the length of the window rather than the time spent sampling.</p>
+ */
+public class RollingDataAggregator extends AbstractDataAggregator {
+
+    /** The length of time covered by each bucket, in milliseconds */
+    private static final long BUCKET_LENGTH = TimeUnit.SECONDS.toMillis(30);
+
+    /** The ring of buckets, guarded by itself */
+    private final Bucket[] buckets;
+
+    /** The length of the window, in milliseconds */
+    private final long windowLength;
+
+    public RollingDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative, long windowLength) {
+        super(workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative);
+        this.windowLength = windowLength;
+
+        // +1 for the bucket currently being filled
+        int bucketCount = (int) ((windowLength + BUCKET_LENGTH - 1) / BUCKET_LENGTH) + 1;
+        this.buckets = new Bucket[bucketCount];
+    }
+
+    /**
+     * Gets the length of time the aggregator retains data for.
+     *
+     * @return the window length, in milliseconds
+     */
+    public long getWindowLength() {
+        return this.windowLength;
+    }
+
+    @Override
+    public SamplerMetadata.DataAggregator getMetadata() {
+        return SamplerMetadata.DataAggregator.newBuilder()
+                .setType(SamplerMetadata.DataAggregator.Type.ROLLING)
+                .setThreadGrouper(this.threadGrouper.asProto())
+                .addAllThreadGrouperRules(this.threadGrouper.rulesAsProto())
+                .build();
+    }
+
+    @Override
+    SampleBatch newBatch(int capacity, long captureTime, long time, int tick) {
+        // the stacks are interned into the tables of the bucket the dump belongs to
+        Bucket bucket = getBucket(captureTime);
+        if (bucket == null) {
+            // the bucket has already expired, the samples are discarded by insertBatch
+            return new SampleBatch(capacity, captureTime, time, tick, new FrameTable(), new StackTable());
+        }
+        return new SampleBatch(capacity, captureTime, time, tick, bucket.frameTable, bucket.stackTable);
+    }
+
+    @Override
+    void insertBatch(SampleBatch batch) {
+        Bucket bucket = getBucket(batch.captureTime());
+        if (bucket == null || bucket.stackTable != batch.stackTable()) {
+            // the bucket the samples were resolved for expired in the meantime
+            return;
+        }
+        writeData(batch, bucket.shards);
+    }
+
+    /**
+     * Gets the bucket for data captured at the given time, creating it if necessary.
+     *
+     * @param captureTime the time, in milliseconds since the epoch
+     * @return the bucket, or null if it has already expired
+     */
+    private Bucket getBucket(long captureTime) {
+        long epoch = captureTime / BUCKET_LENGTH;
+        synchronized (this.buckets) {
+            int slot = (int) (epoch % this.buckets.length);
+            Bucket bucket = this.buckets[slot];
+            if (bucket == null || bucket.epoch < epoch) {
+                // expire the data previously held in this slot
+                bucket = this.buckets[slot] = new Bucket(epoch);
+            } else if (bucket.epoch > epoch) {
+                return null;
+            }
+            return bucket;
+        }
+    }
+
+    /**
+     * Gets all of the data within the window.
+     *
+     * <p>Unlike other aggregators, this does not stop the aggregator from accepting
+     * further data.</p>
+     *
+     * @return the data
+     */
+    @Override
+    public Map<String, ThreadNode> getData() {
+        return getData(this.windowLength);
+    }
+
+    /**
+     * Gets the data sampled within the given length of time before now.
+     *
+     * <p>The result is accurate to the nearest {@link #BUCKET_LENGTH bucket}.</p>
+     *
+     * @param duration the duration, in milliseconds
+     * @return the data
+     */
+    public Map<String, ThreadNode> getData(long duration) {
+        long now = System.currentTimeMillis();
+        long currentEpoch = now / BUCKET_LENGTH;
+        long oldestEpoch = Math.max((now - Math.min(duration, this.windowLength)) / BUCKET_LENGTH, currentEpoch - this.buckets.length + 1);
+
+        List<Bucket> buckets = new ArrayList<>();
+        synchronized (this.buckets) {
+            for (Bucket bucket : this.buckets) {
+                if (bucket != null && bucket.epoch >= oldestEpoch && bucket.epoch <= currentEpoch) {
+                    buckets.add(bucket);
+                }
+            }
+        }
+
+        // the output gets its own frame table, the buckets it is formed from may expire at any time
+        FrameTable frameTable = new FrameTable();
+
+        Map<String, ThreadNode> data = new HashMap<>();
+        for (Bucket bucket : buckets) {
+            for (AggregatorShard shard : bucket.shards) {
+                shard.read(threadData -> {
+                    for (Map.Entry<String, ThreadNode> entry : threadData.entrySet()) {
+                        data.computeIfAbsent(entry.getKey(), g -> new ThreadNode(g, frameTable)).merge(entry.getValue());
+                    }
+                });
+            }
+        }
+        return data;
+    }
+
+    /**
+     * The data sampled within a single period of time.
+     */
+    private final class Bucket {
+        private final long epoch;
+        private final FrameTable frameTable = new FrameTable();
+        private final StackTable stackTable = new StackTable();
+        private final AggregatorShard[] shards;
+
+        Bucket(long epoch) {
+            this.epoch = epoch;
+            this.shards = createShards((shard, group) -> new ThreadNode(group, this.frameTable));
+        }
+    }
+}
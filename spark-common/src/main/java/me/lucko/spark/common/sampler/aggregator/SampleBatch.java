@@ -0,0 +1,118 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.aggregator;
+
+import me.lucko.spark.common.sampler.node.FrameTable;
+import me.lucko.spark.common.sampler.node.StackTable;
+
+/**
+ * The samples resolved from a single thread dump, stored as (group, stack id, weight) tuples.
+ *
+ * <p>The stack ids refer to the tables the batch was created with.</p>
+ *
+ * <p>Batches are filled by one thread and then handed off, they aren't modified afterwards.</p>
+ */
+final class SampleBatch {
+    private final long captureTime;
+    private final long time;
+    private final int tick;
+    private final String[] groups;
+    private final int[] stackIds;
+    private final long[] weights;
+    private final FrameTable frameTable;
+    private final StackTable stackTable;
+    private int size = 0;
+
+    SampleBatch(int capacity, long captureTime, long time, int tick, FrameTable frameTable, StackTable stackTable) {
+        this.captureTime = captureTime;
+        this.time = time;
+        this.tick = tick;
+        this.groups = new String[capacity];
+        this.stackIds = new int[capacity];
+        this.weights = new long[capacity];
+        this.frameTable = frameTable;
+        this.stackTable = stackTable;
+    }
+
+    /**
+     * Gets the time the dump was captured.
+     *
+     * @return the time, in milliseconds since the epoch
+     */
+    long captureTime() {
+        return this.captureTime;
+    }
+
+    /**
+     * Gets the wall-clock time the dump represents.
+     *
+     * @return the time, in microseconds
+     */
+    long time() {
+        return this.time;
+    }
+
+    /**
+     * Gets the tick the dump was captured during.
+     *
+     * @return the tick, or {@link DataAggregator#UNKNOWN_TICK}
+     */
+    int tick() {
+        return this.tick;
+    }
+
+    FrameTable frameTable() {
+        return this.frameTable;
+    }
+
+    StackTable stackTable() {
+        return this.stackTable;
+    }
+
+    void add(String group, int stackId, long weight) {
+        this.groups[this.size] = group;
+        this.stackIds[this.size] = stackId;
+        this.weights[this.size] = weight;
+        this.size++;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    String group(int index) {
+        return this.groups[index];
+    }
+
+    int stackId(int index) {
+        return this.stackIds[index];
+    }
+
+    /**
+     * Gets the value a sample represents, the unit depends on the {@code SamplerMode}.
+     *
+     * @param index the index of the sample
+     * @return the weight
+     */
+    long weight(int index) {
+        return this.weights[index];
+    }
+}
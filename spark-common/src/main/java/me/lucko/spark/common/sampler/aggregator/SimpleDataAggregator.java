@@ -24,10 +24,8 @@ import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
 
-import java.lang.management.ThreadInfo;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Basic implementation of {@link DataAggregator}.
@@ -42,24 +40,17 @@ public class SimpleDataAggregator extends AbstractDataAggregator {
         return SamplerMetadata.DataAggregator.newBuilder()
                 .setType(SamplerMetadata.DataAggregator.Type.SIMPLE)
                 .setThreadGrouper(this.threadGrouper.asProto())
+                .addAllThreadGrouperRules(this.threadGrouper.rulesAsProto())
                 .build();
     }
 
     @Override
-    public void insertData(ThreadInfo threadInfo) {
-        writeData(threadInfo);
+    void insertBatch(SampleBatch batch) {
+        writeData(batch);
     }
 
     @Override
     public Map<String, ThreadNode> getData() {
-        // wait for all pending data to be inserted
-        this.workerPool.shutdown();
-        try {
-            this.workerPool.awaitTermination(15, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
-        return this.threadData;
+        return flushData();
     }
 }
@@ -0,0 +1,489 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.aggregator;
+
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.FrameTable;
+import me.lucko.spark.common.sampler.node.StackTable;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.tick.TickHook;
+import me.lucko.spark.common.sampler.tick.TickReporter;
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link DataAggregator} which records the samples from ticks that exceed
+ * a duration threshold (as measured by the {@link TickReporter}) as separate "spike" records.
+ *
+ * <p>The samples for the last few ticks are kept in a small ring, so each record also includes
+ * the ticks leading up to the spike. When a spike is recorded, its samples are copied into
+ * tables of its own, and the tables used by the ring are replaced, so the memory held is
+ * bounded by the number of records rather than the time spent sampling.</p>
+ */
+public class SpikeDataAggregator extends AbstractDataAggregator implements TickReporter.Callback {
+
+    /** The number of ticks before a spike to include in its record */
+    private static final int CONTEXT_TICKS = 5;
+
+    /** The number of ticks to wait for late samples before a spike is recorded */
+    private static final int CAPTURE_DELAY = 2;
+
+    /** The maximum number of records to retain, older records are discarded first */
+    private static final int MAX_RECORDS = 50;
+
+    /** The maximum number of frames to include in the summary of a record */
+    private static final int TOP_FRAMES = 5;
+
+    /** Used to monitor the current "tick" of the server */
+    private final TickHook tickHook;
+
+    /** Used to measure the duration of each tick */
+    private final TickReporter tickReporter;
+
+    /** Tick durations over this threshold are recorded, measured in milliseconds */
+    private final int spikeThreshold;
+
+    /** The expected number of samples in each tick */
+    private final int expectedSize;
+
+    private final Object mutex = new Object();
+
+    // state, guarded by 'mutex'
+    private final TickBatches[] ring = new TickBatches[CONTEXT_TICKS + CAPTURE_DELAY + 1];
+    private FrameTable ringFrameTable = new FrameTable();
+    private StackTable ringStackTable = new StackTable();
+    private long ringTablesCreated = System.nanoTime();
+    private final List<SpikeRecord> pending = new ArrayList<>();
+    private final Deque<SpikeRecord> records = new ArrayDeque<>();
+    private int nextId = 1;
+
+    public SpikeDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, TickReporter tickReporter, int spikeThreshold) {
+        super(workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative);
+        this.tickHook = tickHook;
+        this.tickReporter = tickReporter;
+        this.spikeThreshold = spikeThreshold;
+        // 50 millis in a tick, plus 10 so we have a bit of room to go over
+        double intervalMilliseconds = interval / 1000d;
+        this.expectedSize = (int) ((50 / intervalMilliseconds) + 10);
+
+        this.tickReporter.addCallback(this);
+    }
+
+    @Override
+    public SamplerMetadata.DataAggregator getMetadata() {
+        return SamplerMetadata.DataAggregator.newBuilder()
+                .setType(SamplerMetadata.DataAggregator.Type.SPIKE)
+                .setThreadGrouper(this.threadGrouper.asProto())
+                .addAllThreadGrouperRules(this.threadGrouper.rulesAsProto())
+                .setTickLengthThreshold(TimeUnit.MILLISECONDS.toMicros(this.spikeThreshold))
+                .build();
+    }
+
+    @Override
+    SampleBatch newBatch(int capacity, long captureTime, long time, int tick) {
+        synchronized (this.mutex) {
+            // the ring only spans a few ticks, so its tables are also replaced periodically
+            // in case no spikes are recorded for a while
+            if (System.nanoTime() - this.ringTablesCreated > AggregatorShard.FLUSH_INTERVAL) {
+                resetRingTables();
+            }
+            return new SampleBatch(capacity, captureTime, time, tick, this.ringFrameTable, this.ringStackTable);
+        }
+    }
+
+    // guarded by 'mutex'
+    private void resetRingTables() {
+        // batches already in the ring keep the tables they were resolved against
+        this.ringFrameTable = new FrameTable();
+        this.ringStackTable = new StackTable();
+        this.ringTablesCreated = System.nanoTime();
+    }
+
+    @Override
+    void insertBatch(SampleBatch batch) {
+        // the samples are attributed to the tick they were captured during
+        int tick = batch.tick() != UNKNOWN_TICK ? batch.tick() : this.tickHook.getCurrentTick();
+        synchronized (this.mutex) {
+            int slot = Math.floorMod(tick, this.ring.length);
+
+            TickBatches batches = this.ring[slot];
+            if (batches == null || batches.tick != tick) {
+                // a new tick has started - record any spikes which are ready
+                captureSpikes(tick - CAPTURE_DELAY);
+                batches = this.ring[slot] = new TickBatches(tick);
+            }
+            batches.add(batch);
+        }
+    }
+
+    @Override
+    public void onTick(double duration) {
+        if (duration < this.spikeThreshold) {
+            return;
+        }
+
+        // the samples for the tick aren't captured yet, as some may still be in the worker queue
+        synchronized (this.mutex) {
+            this.pending.add(new SpikeRecord(this.tickHook.getCurrentTick(), System.currentTimeMillis(), duration));
+        }
+    }
+
+    // guarded by 'mutex'
+    private void captureSpikes(int maxTick) {
+        boolean captured = false;
+        Iterator<SpikeRecord> it = this.pending.iterator();
+        while (it.hasNext()) {
+            SpikeRecord record = it.next();
+            if (record.tick > maxTick) {
+                continue;
+            }
+            it.remove();
+            captured = true;
+
+            // collect the samples from the spike and the ticks leading up to it
+            List<TickBatches> ticks = new ArrayList<>();
+            for (TickBatches batches : this.ring) {
+                if (batches != null && batches.tick <= record.tick && batches.tick >= record.tick - CONTEXT_TICKS) {
+                    ticks.add(batches);
+                }
+            }
+            ticks.sort(Comparator.comparingInt(batches -> batches.tick));
+
+            // copy the samples into tables of their own, so the record doesn't keep the
+            // (much larger) tables used by the ring alive
+            FrameTable frameTable = new FrameTable();
+            StackTable stackTable = new StackTable();
+            TickSamples[] samples = new TickSamples[ticks.size()];
+            long startTime = record.time;
+            for (int i = 0; i < samples.length; i++) {
+                TickBatches batches = ticks.get(i);
+                samples[i] = batches.copy(frameTable, stackTable, this.expectedSize);
+                startTime = Math.min(startTime, batches.getFirstCaptureTime());
+            }
+
+            record.capture(this.nextId++, startTime, samples, frameTable, stackTable, summarise(record.tick, samples, frameTable, stackTable));
+            this.records.addLast(record);
+            if (this.records.size() > MAX_RECORDS) {
+                this.records.removeFirst();
+            }
+        }
+
+        if (captured) {
+            resetRingTables();
+        }
+    }
+
+    /**
+     * Finds the frames which were most often at the top of the stack during the spike tick.
+     */
+    private static List<String> summarise(int spikeTick, TickSamples[] ticks, FrameTable frameTable, StackTable stackTable) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (TickSamples samples : ticks) {
+            if (samples.tick != spikeTick) {
+                continue;
+            }
+            for (int i = 0; i < samples.size; i++) {
+                int[] stack = stackTable.get(samples.stackIds[i]);
+                if (stack.length != 0) {
+                    counts.merge(stack[0], 1, Integer::sum);
+                }
+            }
+        }
+
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<Integer, Integer>comparingByValue().reversed());
+
+        List<String> frames = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : entries.subList(0, Math.min(TOP_FRAMES, entries.size()))) {
+            FrameTable.Frame frame = frameTable.get(entry.getKey());
+            frames.add(frame.getClassName() + "." + frame.getMethodName() + ":" + frame.getLineNumber() + " (" + entry.getValue() + ")");
+        }
+        return frames;
+    }
+
+    /**
+     * Gets the spike records, oldest first.
+     *
+     * @return the records
+     */
+    public List<SpikeRecord> getRecords() {
+        synchronized (this.mutex) {
+            return new ArrayList<>(this.records);
+        }
+    }
+
+    /**
+     * Gets the spike record with the given id.
+     *
+     * @param id the id
+     * @return the record, or null if it doesn't exist (or has been discarded)
+     */
+    public SpikeRecord getRecord(int id) {
+        synchronized (this.mutex) {
+            for (SpikeRecord record : this.records) {
+                if (record.id == id) {
+                    return record;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the data recorded for a single spike, including the ticks leading up to it.
+     *
+     * @param record the record
+     * @return the data
+     */
+    public Map<String, ThreadNode> getData(SpikeRecord record) {
+        Map<String, ThreadNode> data = new HashMap<>();
+        for (TickSamples samples : record.ticks) {
+            for (int i = 0; i < samples.size; i++) {
+                data.computeIfAbsent(samples.groups[i], g -> new ThreadNode(g, record.frameTable)).log(record.stackTable, samples.stackIds[i], samples.times[i]);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Gets the data for all of the recorded spikes.
+     *
+     * @return the data
+     */
+    @Override
+    public Map<String, ThreadNode> getData() {
+        List<SpikeRecord> records;
+        synchronized (this.mutex) {
+            captureSpikes(Integer.MAX_VALUE);
+            records = new ArrayList<>(this.records);
+        }
+
+        // each record has its own tables, so the output gets another
+        FrameTable frameTable = new FrameTable();
+        Map<String, ThreadNode> data = new HashMap<>();
+        for (SpikeRecord record : records) {
+            for (Map.Entry<String, ThreadNode> entry : getData(record).entrySet()) {
+                data.computeIfAbsent(entry.getKey(), g -> new ThreadNode(g, frameTable)).merge(entry.getValue());
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public void close(boolean discard) {
+        this.tickReporter.removeCallback(this);
+        synchronized (this.mutex) {
+            captureSpikes(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * A tick which exceeded the spike threshold.
+     */
+    public static final class SpikeRecord {
+        private final int tick;
+        private final long time;
+        private final double duration;
+
+        // set once the samples have been captured
+        private int id;
+        private long startTime;
+        private TickSamples[] ticks;
+        private FrameTable frameTable;
+        private StackTable stackTable;
+        private List<String> topFrames;
+
+        SpikeRecord(int tick, long time, double duration) {
+            this.tick = tick;
+            this.time = time;
+            this.duration = duration;
+        }
+
+        void capture(int id, long startTime, TickSamples[] ticks, FrameTable frameTable, StackTable stackTable, List<String> topFrames) {
+            this.id = id;
+            this.startTime = startTime;
+            this.ticks = ticks;
+            this.frameTable = frameTable;
+            this.stackTable = stackTable;
+            this.topFrames = Collections.unmodifiableList(topFrames);
+        }
+
+        public int getId() {
+            return this.id;
+        }
+
+        /**
+         * Gets the unix timestamp (in millis) when the spike ended.
+         *
+         * @return the time
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        /**
+         * Gets the unix timestamp (in millis) when the first sample in the record was captured.
+         *
+         * @return the time, or the {@link #getTime() time the spike ended} if there are no samples
+         */
+        public long getStartTime() {
+            return this.startTime;
+        }
+
+        /**
+         * Gets the duration of the spike tick, as reported by the {@link TickReporter}.
+         *
+         * @return the duration in milliseconds
+         */
+        public double getDuration() {
+            return this.duration;
+        }
+
+        /**
+         * Gets the number of ticks in the record, including the spike tick.
+         *
+         * @return the tick count
+         */
+        public int getTickCount() {
+            return this.ticks.length;
+        }
+
+        /**
+         * Gets the number of samples taken during the spike tick.
+         *
+         * @return the sample count
+         */
+        public int getSpikeSampleCount() {
+            for (TickSamples samples : this.ticks) {
+                if (samples.tick == this.tick) {
+                    return samples.size;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Gets a summary of the frames most often at the top of the stack during the spike tick.
+         *
+         * @return the frames
+         */
+        public List<String> getTopFrames() {
+            return this.topFrames;
+        }
+    }
+
+    /**
+     * The batches of samples inserted for a single tick.
+     */
+    static final class TickBatches {
+        private final int tick;
+        private final List<SampleBatch> batches = new ArrayList<>();
+
+        TickBatches(int tick) {
+            this.tick = tick;
+        }
+
+        void add(SampleBatch batch) {
+            this.batches.add(batch);
+        }
+
+        /**
+         * Gets the unix timestamp (in millis) when the earliest batch in the tick was captured.
+         *
+         * @return the time, or {@link Long#MAX_VALUE} if there are no batches
+         */
+        long getFirstCaptureTime() {
+            long time = Long.MAX_VALUE;
+            for (SampleBatch batch : this.batches) {
+                time = Math.min(time, batch.captureTime());
+            }
+            return time;
+        }
+
+        /**
+         * Copies the samples, interning their stacks into the given tables.
+         *
+         * @param frameTable the frame table to copy into
+         * @param stackTable the stack table to copy into
+         * @param expectedSize the expected number of samples
+         * @return the samples
+         */
+        TickSamples copy(FrameTable frameTable, StackTable stackTable, int expectedSize) {
+            TickSamples samples = new TickSamples(this.tick, expectedSize);
+            for (SampleBatch batch : this.batches) {
+                FrameTable batchFrameTable = batch.frameTable();
+                for (int i = 0; i < batch.size(); i++) {
+                    int[] frames = batch.stackTable().get(batch.stackId(i));
+                    int[] copied = new int[frames.length];
+                    for (int j = 0; j < frames.length; j++) {
+                        FrameTable.Frame frame = batchFrameTable.get(frames[j]);
+                        copied[j] = frameTable.intern(frame.getClassName(), frame.getMethodName(), frame.getLineNumber());
+                    }
+                    samples.add(batch.group(i), stackTable.intern(copied, copied.length), batch.weight(i));
+                }
+            }
+            return samples;
+        }
+    }
+
+    /**
+     * The samples collected during a single tick, stored as (group, stack id, time) tuples.
+     */
+    static final class TickSamples {
+        private final int tick;
+        private String[] groups;
+        private int[] stackIds;
+        private long[] times;
+        private int size = 0;
+
+        TickSamples(int tick, int expectedSize) {
+            this.tick = tick;
+            this.groups = new String[expectedSize];
+            this.stackIds = new int[expectedSize];
+            this.times = new long[expectedSize];
+        }
+
+        void add(String group, int stackId, long time) {
+            if (this.size == this.stackIds.length) {
+                int capacity = Math.max(16, this.size * 2);
+                this.groups = Arrays.copyOf(this.groups, capacity);
+                this.stackIds = Arrays.copyOf(this.stackIds, capacity);
+                this.times = Arrays.copyOf(this.times, capacity);
+            }
+            this.groups[this.size] = group;
+            this.stackIds[this.size] = stackId;
+            this.times[this.size] = time;
+            this.size++;
+        }
+    }
+}
@@ -23,24 +23,40 @@ package me.lucko.spark.common.sampler.aggregator;
 import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.common.sampler.tick.TickHook;
+import me.lucko.spark.common.sampler.tick.TickReporter;
 import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
 
-import java.lang.management.ThreadInfo;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of {@link DataAggregator} which supports only including sampling data from "ticks"
  * which exceed a certain threshold in duration.
+ *
+ * <p>If a {@link TickReporter} is available, the measured duration of each tick is used. Otherwise
+ * the duration is estimated from the number of samples taken during the tick.</p>
  */
-public class TickedDataAggregator extends AbstractDataAggregator {
+public class TickedDataAggregator extends AbstractDataAggregator implements TickReporter.Callback {
+
+    /** The maximum number of ticks to hold whilst waiting for their duration to be reported */
+    private static final int MAX_AWAITING_TICKS = 20;
+
+    /** The maximum number of tick durations to include in the metadata */
+    private static final int MAX_RECORDED_DURATIONS = 100000;
 
     /** Used to monitor the current "tick" of the server */
     private final TickHook tickHook;
 
+    /** Used to measure the duration of each tick, may be null */
+    private final TickReporter tickReporter;
+
     /** Tick durations under this threshold will not be inserted, measured in microseconds */
     private final long tickLengthThreshold;
 
@@ -49,95 +65,216 @@ public class TickedDataAggregator extends AbstractDataAggregator {
 
     private final Object mutex = new Object();
 
-    // state
-    private int currentTick = -1;
-    private TickList currentData = new TickList(0);
+    // state, guarded by 'mutex'
+    /** The ticks samples are currently being recorded against */
+    private final Map<Integer, TickList> currentTicks = new HashMap<>();
+    /** The latest tick samples have been recorded against */
+    private int latestTick = Integer.MIN_VALUE;
+
+    /** Completed ticks whose duration hasn't been reported yet */
+    private final Map<Integer, TickList> awaitingDuration = new HashMap<>();
+    /** Reported durations for ticks which haven't completed yet */
+    private final Map<Integer, Double> reportedDurations = new HashMap<>();
+    /** The measured durations of the ticks which were included */
+    private final List<Double> includedDurations = new ArrayList<>();
 
-    public TickedDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, int tickLengthThreshold) {
+    public TickedDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, int tickLengthThreshold, TickReporter tickReporter) {
         super(workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative);
         this.tickHook = tickHook;
+        this.tickReporter = tickReporter;
         this.tickLengthThreshold = TimeUnit.MILLISECONDS.toMicros(tickLengthThreshold);
         // 50 millis in a tick, plus 10 so we have a bit of room to go over
         double intervalMilliseconds = interval / 1000d;
         this.expectedSize = (int) ((50 / intervalMilliseconds) + 10);
+
+        if (this.tickReporter != null) {
+            this.tickReporter.addCallback(this);
+        }
     }
 
     @Override
     public SamplerMetadata.DataAggregator getMetadata() {
-        return SamplerMetadata.DataAggregator.newBuilder()
+        SamplerMetadata.DataAggregator.Builder builder = SamplerMetadata.DataAggregator.newBuilder()
                 .setType(SamplerMetadata.DataAggregator.Type.TICKED)
                 .setThreadGrouper(this.threadGrouper.asProto())
-                .setTickLengthThreshold(this.tickLengthThreshold)
-                .build();
+                .addAllThreadGrouperRules(this.threadGrouper.rulesAsProto())
+                .setTickLengthThreshold(this.tickLengthThreshold);
+
+        synchronized (this.mutex) {
+            builder.addAllTickDurations(this.includedDurations);
+        }
+        return builder.build();
     }
 
     @Override
-    public void insertData(ThreadInfo threadInfo) {
+    void insertBatch(SampleBatch batch) {
+        // the whole dump is attributed to the tick it was captured during, and handed off
+        // with one lock acquisition. the lock only covers appending the already resolved
+        // batch, and keeps the tick state consistent with the durations reported by onTick
+        int tick = batch.tick() != UNKNOWN_TICK ? batch.tick() : this.tickHook.getCurrentTick();
         synchronized (this.mutex) {
-            int tick = this.tickHook.getCurrentTick();
-            if (this.currentTick != tick) {
-                pushCurrentTick();
-                this.currentTick = tick;
-                this.currentData = new TickList(this.expectedSize);
+            if (tick > this.latestTick) {
+                this.latestTick = tick;
+
+                // dumps are inserted by several workers at once, so may arrive slightly out of
+                // order - a tick is only completed once samples from two ticks later arrive
+                Iterator<Map.Entry<Integer, TickList>> it = this.currentTicks.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, TickList> entry = it.next();
+                    if (entry.getKey() < tick - 1) {
+                        it.remove();
+                        completeTick(entry.getKey(), entry.getValue(), false);
+                    }
+                }
             }
 
-            this.currentData.addData(threadInfo);
+            this.currentTicks.computeIfAbsent(tick, t -> new TickList(this.expectedSize)).addBatch(batch);
+        }
+    }
+
+    @Override
+    public void onTick(double duration) {
+        synchronized (this.mutex) {
+            // the tick which just ended is the one samples are currently being recorded against
+            int tick = this.tickHook.getCurrentTick();
+
+            TickList data = this.awaitingDuration.remove(tick);
+            if (data != null) {
+                pushTick(data, duration);
+            } else {
+                this.reportedDurations.put(tick, duration);
+                if (this.reportedDurations.size() > MAX_AWAITING_TICKS) {
+                    this.reportedDurations.keySet().removeIf(t -> t < tick - MAX_AWAITING_TICKS);
+                }
+            }
         }
     }
 
     // guarded by 'mutex'
-    private void pushCurrentTick() {
-        TickList currentData = this.currentData;
+    private void completeTick(int tick, TickList currentData, boolean complete) {
+        if (currentData.size() == 0) {
+            return;
+        }
+
+        if (this.tickReporter == null) {
+            // approximate how long the tick lasted
+            pushTick(currentData, currentData.getSampledTime() / 1000d);
+            return;
+        }
+
+        Double duration = this.reportedDurations.remove(tick);
+        if (duration != null) {
+            pushTick(currentData, duration);
+        } else if (complete) {
+            // no more samples are coming, so fall back to an estimate
+            pushTick(currentData, currentData.getSampledTime() / 1000d);
+        } else {
+            // the duration will (usually) be reported shortly after the tick ends
+            this.awaitingDuration.put(tick, currentData);
 
-        // approximate how long the tick lasted
-        int tickLengthMicros = currentData.getList().size() * this.interval;
+            // if durations aren't being reported, fall back to estimates rather than losing data
+            if (this.awaitingDuration.size() > MAX_AWAITING_TICKS) {
+                this.awaitingDuration.entrySet().removeIf(e -> {
+                    if (e.getKey() >= tick - MAX_AWAITING_TICKS) {
+                        return false;
+                    }
+                    pushTick(e.getValue(), e.getValue().getSampledTime() / 1000d);
+                    return true;
+                });
+            }
+        }
+    }
 
+    // guarded by 'mutex'
+    private void pushTick(TickList data, double durationMillis) {
         // don't push data below the threshold
-        if (tickLengthMicros < this.tickLengthThreshold) {
+        if (durationMillis * 1000d < this.tickLengthThreshold) {
             return;
         }
 
-        this.workerPool.submit(currentData);
+        if (this.includedDurations.size() < MAX_RECORDED_DURATIONS) {
+            this.includedDurations.add(durationMillis);
+        }
+
+        try {
+            this.workerPool.execute(data);
+        } catch (RejectedExecutionException e) {
+            // the worker pool has been shutdown, insert the data directly
+            data.run();
+        }
     }
 
     @Override
     public Map<String, ThreadNode> getData() {
-        // push the current tick
-        synchronized (this.mutex) {
-            pushCurrentTick();
+        if (this.tickReporter != null) {
+            this.tickReporter.removeCallback(this);
         }
 
-        // wait for all pending data to be inserted
-        this.workerPool.shutdown();
-        try {
-            this.workerPool.awaitTermination(15, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        // push the current ticks, and any which are still waiting for a duration
+        synchronized (this.mutex) {
+            for (Map.Entry<Integer, TickList> entry : this.currentTicks.entrySet()) {
+                completeTick(entry.getKey(), entry.getValue(), true);
+            }
+            this.currentTicks.clear();
+            for (TickList data : this.awaitingDuration.values()) {
+                pushTick(data, data.getSampledTime() / 1000d);
+            }
+            this.awaitingDuration.clear();
         }
 
-        return this.threadData;
+        return flushData();
     }
 
+    @Override
+    public void close(boolean discard) {
+        if (this.tickReporter != null) {
+            this.tickReporter.removeCallback(this);
+        }
+    }
+
+    /**
+     * The samples collected during a single tick, stored as one batch per thread dump.
+     */
     private final class TickList implements Runnable {
-        private final List<ThreadInfo> list;
+        private SampleBatch[] batches;
+        private int size = 0;
+        private long sampledTime = 0;
 
         TickList(int expectedSize) {
-            this.list = new ArrayList<>(expectedSize);
+            this.batches = new SampleBatch[expectedSize];
         }
 
         @Override
         public void run() {
-            for (ThreadInfo data : this.list) {
-                writeData(data);
+            for (int i = 0; i < this.size; i++) {
+                writeData(this.batches[i]);
             }
         }
 
-        public List<ThreadInfo> getList() {
-            return this.list;
+        /**
+         * Gets the number of thread dumps taken during the tick.
+         *
+         * @return the number of dumps
+         */
+        public int size() {
+            return this.size;
         }
 
-        public void addData(ThreadInfo data) {
-            this.list.add(data);
+        /**
+         * Gets the total time represented by the thread dumps taken during the tick.
+         *
+         * @return the time, in microseconds
+         */
+        public long getSampledTime() {
+            return this.sampledTime;
+        }
+
+        public void addBatch(SampleBatch batch) {
+            if (this.size == this.batches.length) {
+                this.batches = Arrays.copyOf(this.batches, Math.max(16, this.size * 2));
+            }
+            this.batches[this.size++] = batch;
+            this.sampledTime += batch.time();
         }
     }
 }
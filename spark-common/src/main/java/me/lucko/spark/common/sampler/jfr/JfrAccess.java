@@ -0,0 +1,276 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler.jfr;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Provides reflective access to the JDK Flight Recorder API.
+ *
+ * <p>spark is compiled against Java 8, which (mostly) doesn't include the {@code jdk.jfr} API,
+ * so it has to be accessed reflectively.</p>
+ */
+final class JfrAccess {
+
+    // guarded by JfrAccess.class
+    private static JfrAccess instance = null;
+    private static UnsupportedOperationException loadFailure = null;
+
+    /**
+     * Gets the JFR API.
+     *
+     * @return the api
+     * @throws UnsupportedOperationException if JFR isn't available
+     */
+    static synchronized JfrAccess get() {
+        if (instance == null && loadFailure == null) {
+            try {
+                instance = new JfrAccess();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                loadFailure = new UnsupportedOperationException("JFR is not available in this JVM", e);
+            }
+        }
+        if (loadFailure != null) {
+            throw loadFailure;
+        }
+        return instance;
+    }
+
+    // jdk.jfr.Recording
+    private final Constructor<?> newRecording;
+    private final Method recordingEnable;
+    private final Method recordingStart;
+    private final Method recordingStop;
+    private final Method recordingDump;
+    private final Method recordingClose;
+
+    // jdk.jfr.EventSettings
+    private final Method settingsWithPeriod;
+
+    // jdk.jfr.consumer.RecordingStream (Java 14+)
+    private final Constructor<?> newStream;
+    private final Method streamEnable;
+    private final Method streamOnEvent;
+    private final Method streamStartAsync;
+    private final Method streamClose;
+
+    // jdk.jfr.consumer.RecordingFile
+    private final Method readAllEvents;
+
+    // jdk.jfr.consumer.Recorded*
+    private final Method eventGetStackTrace;
+    private final Method eventGetThread;
+    private final Method eventGetStartTime;
+    private final Method stackTraceGetFrames;
+    private final Method frameGetMethod;
+    private final Method frameGetLineNumber;
+    private final Method methodGetType;
+    private final Method methodGetName;
+    private final Method classGetName;
+    private final Method threadGetJavaName;
+    private final Method threadGetJavaThreadId;
+
+    private JfrAccess() throws ReflectiveOperationException {
+        Class<?> recording = Class.forName("jdk.jfr.Recording");
+        this.newRecording = recording.getConstructor();
+        this.recordingEnable = recording.getMethod("enable", String.class);
+        this.recordingStart = recording.getMethod("start");
+        this.recordingStop = recording.getMethod("stop");
+        this.recordingDump = recording.getMethod("dump", Path.class);
+        this.recordingClose = recording.getMethod("close");
+
+        this.settingsWithPeriod = Class.forName("jdk.jfr.EventSettings").getMethod("withPeriod", Duration.class);
+
+        Class<?> stream;
+        try {
+            stream = Class.forName("jdk.jfr.consumer.RecordingStream");
+        } catch (ClassNotFoundException e) {
+            stream = null;
+        }
+        if (stream != null) {
+            this.newStream = stream.getConstructor();
+            this.streamEnable = stream.getMethod("enable", String.class);
+            this.streamOnEvent = stream.getMethod("onEvent", String.class, Consumer.class);
+            this.streamStartAsync = stream.getMethod("startAsync");
+            this.streamClose = stream.getMethod("close");
+        } else {
+            this.newStream = null;
+            this.streamEnable = null;
+            this.streamOnEvent = null;
+            this.streamStartAsync = null;
+            this.streamClose = null;
+        }
+
+        this.readAllEvents = Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", Path.class);
+
+        Class<?> event = Class.forName("jdk.jfr.consumer.RecordedEvent");
+        this.eventGetStackTrace = event.getMethod("getStackTrace");
+        this.eventGetThread = event.getMethod("getThread", String.class);
+        this.eventGetStartTime = event.getMethod("getStartTime");
+        this.stackTraceGetFrames = Class.forName("jdk.jfr.consumer.RecordedStackTrace").getMethod("getFrames");
+        Class<?> frame = Class.forName("jdk.jfr.consumer.RecordedFrame");
+        this.frameGetMethod = frame.getMethod("getMethod");
+        this.frameGetLineNumber = frame.getMethod("getLineNumber");
+        Class<?> method = Class.forName("jdk.jfr.consumer.RecordedMethod");
+        this.methodGetType = method.getMethod("getType");
+        this.methodGetName = method.getMethod("getName");
+        this.classGetName = Class.forName("jdk.jfr.consumer.RecordedClass").getMethod("getName");
+        Class<?> thread = Class.forName("jdk.jfr.consumer.RecordedThread");
+        this.threadGetJavaName = thread.getMethod("getJavaName");
+        this.threadGetJavaThreadId = thread.getMethod("getJavaThreadId");
+    }
+
+    /**
+     * Gets if events can be streamed as they are recorded (Java 14+).
+     *
+     * @return if streaming is supported
+     */
+    boolean isStreamingSupported() {
+        return this.newStream != null;
+    }
+
+    Object newRecording(List<String> events, Duration period) {
+        Object recording = construct(this.newRecording);
+        for (String event : events) {
+            invoke(this.settingsWithPeriod, invoke(this.recordingEnable, recording, event), period);
+        }
+        return recording;
+    }
+
+    void startRecording(Object recording) {
+        invoke(this.recordingStart, recording);
+    }
+
+    /**
+     * Stops a recording and reads the events it recorded.
+     *
+     * @param recording the recording
+     * @param dumpPath the path to temporarily write the recording to
+     * @return the recorded events
+     */
+    List<?> stopRecording(Object recording, Path dumpPath) {
+        try {
+            invoke(this.recordingStop, recording);
+            invoke(this.recordingDump, recording, dumpPath);
+            return (List<?>) invoke(this.readAllEvents, null, dumpPath);
+        } finally {
+            invoke(this.recordingClose, recording);
+        }
+    }
+
+    Object newStream(List<String> events, Duration period, Consumer<Object> consumer) {
+        Object stream = construct(this.newStream);
+        for (String event : events) {
+            invoke(this.settingsWithPeriod, invoke(this.streamEnable, stream, event), period);
+            invoke(this.streamOnEvent, stream, event, consumer);
+        }
+        return stream;
+    }
+
+    void startStream(Object stream) {
+        invoke(this.streamStartAsync, stream);
+    }
+
+    void closeStream(Object stream) {
+        invoke(this.streamClose, stream);
+    }
+
+    /**
+     * Gets the "sampledThread" of a sample event.
+     *
+     * @param event the event
+     * @return the thread, or null
+     */
+    Object getSampledThread(Object event) {
+        return invoke(this.eventGetThread, event, "sampledThread");
+    }
+
+    /**
+     * Gets the time an event was recorded.
+     *
+     * @param event the event
+     * @return the time, in microseconds since the epoch
+     */
+    long getStartTime(Object event) {
+        Instant time = (Instant) invoke(this.eventGetStartTime, event);
+        return TimeUnit.SECONDS.toMicros(time.getEpochSecond()) + TimeUnit.NANOSECONDS.toMicros(time.getNano());
+    }
+
+    String getJavaName(Object thread) {
+        return (String) invoke(this.threadGetJavaName, thread);
+    }
+
+    long getJavaThreadId(Object thread) {
+        return (Long) invoke(this.threadGetJavaThreadId, thread);
+    }
+
+    /**
+     * Gets the stack of an event.
+     *
+     * @param event the event
+     * @return the stack, top of the stack first, or null if the event has no stack
+     */
+    StackTraceElement[] getStackTrace(Object event) {
+        Object stackTrace = invoke(this.eventGetStackTrace, event);
+        if (stackTrace == null) {
+            return null;
+        }
+
+        List<?> frames = (List<?>) invoke(this.stackTraceGetFrames, stackTrace);
+        StackTraceElement[] stack = new StackTraceElement[frames.size()];
+        for (int i = 0; i < stack.length; i++) {
+            Object frame = frames.get(i);
+            Object method = invoke(this.frameGetMethod, frame);
+            String className = (String) invoke(this.classGetName, invoke(this.methodGetType, method));
+            String methodName = (String) invoke(this.methodGetName, method);
+            int lineNumber = (Integer) invoke(this.frameGetLineNumber, frame);
+            stack[i] = new StackTraceElement(className, methodName, null, lineNumber);
+        }
+        return stack;
+    }
+
+    private static Object construct(Constructor<?> constructor) {
+        try {
+            return constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Object invoke(Method method, Object instance, Object... args) {
+        try {
+            return method.invoke(instance, args);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler.jfr;
+
+import com.google.common.collect.ImmutableList;
+import me.lucko.spark.common.sampler.ExternalEngine;
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.ThreadDumper;
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link ExternalEngine} which uses JDK Flight Recorder method sampling to capture samples.
+ *
+ * <p>JFR samples threads without waiting for them to reach a safepoint, and with very low
+ * overhead. On Java 14+ events are streamed as they are recorded, otherwise a new recording
+ * is started on each poll and the previous one is read back from disk.</p>
+ *
+ * <p>JFR only samples a few threads each period, and clamps short periods, so the interval
+ * between samples of a thread can be much longer than the configured interval. Each sample is
+ * therefore weighted by the time since the previous sample of the same thread.</p>
+ */
+public class JfrEngine implements ExternalEngine {
+    private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+    private static final String NATIVE_METHOD_SAMPLE = "jdk.NativeMethodSample";
+
+    /**
+     * The longest gap between two samples of a thread which is attributed to the latter sample, in
+     * microseconds. Longer gaps mean the thread wasn't sampled (e.g. it wasn't running), so the
+     * sample is weighted as if it were the thread's first.
+     */
+    private static final long MAX_SAMPLE_GAP = TimeUnit.SECONDS.toMicros(1);
+
+    /**
+     * Creates a new JFR engine.
+     *
+     * @param threadDumper the thread dumper, used to decide which threads are included
+     * @param mode the sampler mode, only {@link SamplerMode#EXECUTION} and {@link SamplerMode#CPU_TIME} are supported
+     * @param interval the interval between samples, in microseconds
+     * @return the engine
+     * @throws UnsupportedOperationException if JFR can't be used
+     */
+    public static JfrEngine create(ThreadDumper threadDumper, SamplerMode mode, int interval) {
+        List<String> events;
+        if (mode == SamplerMode.EXECUTION) {
+            // threads running java code, and threads in native code (e.g. waiting on I/O)
+            events = ImmutableList.of(EXECUTION_SAMPLE, NATIVE_METHOD_SAMPLE);
+        } else if (mode == SamplerMode.CPU_TIME) {
+            events = ImmutableList.of(EXECUTION_SAMPLE);
+        } else {
+            throw new UnsupportedOperationException("The " + mode.name().toLowerCase() + " mode is not supported by JFR");
+        }
+
+        return new JfrEngine(JfrAccess.get(), threadDumper, events, interval);
+    }
+
+    private final JfrAccess jfr;
+    private final ThreadDumper threadDumper;
+    private final List<String> events;
+
+    /** The interval between samples, in microseconds */
+    private final int interval;
+
+    // guarded by 'this'
+    private DataAggregator dataAggregator;
+    private boolean running = false;
+    private Object recording;
+    private Object stream;
+    /** The time of the last sample of each thread, in microseconds since the epoch */
+    private final Map<Long, Long> lastSampleTimes = new HashMap<>();
+    /** The time of the latest sample of any thread */
+    private long latestSampleTime = Long.MIN_VALUE;
+
+    private JfrEngine(JfrAccess jfr, ThreadDumper threadDumper, List<String> events, int interval) {
+        this.jfr = jfr;
+        this.threadDumper = threadDumper;
+        this.events = events;
+        this.interval = interval;
+    }
+
+    @Override
+    public synchronized void start(DataAggregator dataAggregator) {
+        this.dataAggregator = dataAggregator;
+        this.running = true;
+
+        Duration period = Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.interval));
+        if (this.jfr.isStreamingSupported()) {
+            this.stream = this.jfr.newStream(this.events, period, this::onStreamedEvent);
+            this.jfr.startStream(this.stream);
+        } else {
+            this.recording = this.jfr.newRecording(this.events, period);
+            this.jfr.startRecording(this.recording);
+        }
+    }
+
+    @Override
+    public synchronized void poll() {
+        if (!this.running) {
+            return;
+        }
+
+        if (this.recording != null) {
+            // stop the current recording before starting the next one, so their samples don't overlap
+            insertRecording(this.recording);
+            this.recording = this.jfr.newRecording(this.events, Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.interval)));
+            this.jfr.startRecording(this.recording);
+        }
+
+        // forget threads which haven't been sampled recently, their next sample is weighted as their first anyway
+        Iterator<Long> it = this.lastSampleTimes.values().iterator();
+        while (it.hasNext()) {
+            if (this.latestSampleTime - it.next() > maxSampleGap()) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        Object stream;
+        synchronized (this) {
+            if (!this.running) {
+                return;
+            }
+            this.running = false;
+
+            if (this.recording != null) {
+                insertRecording(this.recording);
+                this.recording = null;
+            }
+            stream = this.stream;
+            this.stream = null;
+        }
+
+        // closed outside of the lock, as the stream may be waiting to deliver an event.
+        // events still buffered by the stream (up to around a second) are discarded
+        if (stream != null) {
+            this.jfr.closeStream(stream);
+        }
+    }
+
+    private void onStreamedEvent(Object event) {
+        synchronized (this) {
+            if (this.running) {
+                insertEvent(event);
+            }
+        }
+    }
+
+    // guarded by 'this'
+    private void insertRecording(Object recording) {
+        Path dumpPath = null;
+        try {
+            dumpPath = Files.createTempFile("spark-", ".jfr");
+            for (Object event : this.jfr.stopRecording(recording, dumpPath)) {
+                insertEvent(event);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (dumpPath != null) {
+                try {
+                    Files.deleteIfExists(dumpPath);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // guarded by 'this'
+    private void insertEvent(Object event) {
+        Object thread = this.jfr.getSampledThread(event);
+        if (thread == null) {
+            return;
+        }
+
+        String threadName = this.jfr.getJavaName(thread);
+        long threadId = this.jfr.getJavaThreadId(thread);
+        if (threadName == null || !this.threadDumper.isThreadIncluded(threadId, threadName)) {
+            return;
+        }
+
+        StackTraceElement[] stack = this.jfr.getStackTrace(event);
+        if (stack == null) {
+            return;
+        }
+
+        long time = this.jfr.getStartTime(event);
+        this.latestSampleTime = Math.max(this.latestSampleTime, time);
+
+        long weight = this.interval;
+        Long lastTime = this.lastSampleTimes.get(threadId);
+        if (lastTime == null || time > lastTime) {
+            if (lastTime != null && time - lastTime <= maxSampleGap()) {
+                weight = time - lastTime;
+            }
+            this.lastSampleTimes.put(threadId, time);
+        }
+
+        this.dataAggregator.insertData(threadId, threadName, stack, TimeUnit.MICROSECONDS.toMillis(time), weight);
+    }
+
+    private long maxSampleGap() {
+        return Math.max(MAX_SAMPLE_GAP, this.interval);
+    }
+}
@@ -21,29 +21,40 @@
 
 package me.lucko.spark.common.sampler.node;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Encapsulates a timed node in the sampling stack.
+ *
+ * <p>Samples are recorded in a compact {@link CallTree}, and nodes are only created from it
+ * when the data is exported. Nodes are not thread safe.</p>
  */
 public abstract class AbstractNode {
 
-    private static final int MAX_STACK_DEPTH = 300;
+    /** The maximum number of frames (from the root) recorded for each stack */
+    public static final int MAX_STACK_DEPTH = 300;
 
     /**
      * A map of this nodes children
      */
-    private final Map<StackTraceNode.Description, StackTraceNode> children = new ConcurrentHashMap<>();
+    private final ChildNodeMap children = new ChildNodeMap();
 
     /**
      * The accumulated sample time for this node, measured in microseconds
      */
-    private final LongAdder totalTime = new LongAdder();
+    private long totalTime = 0;
+
+    /**
+     * The (approximate) number of nodes in the subtree rooted at this node, used to decide
+     * if the subtree is worth exporting in parallel
+     */
+    private int subtreeSize = 1;
 
     /**
      * Returns the total sample time for this node in milliseconds.
@@ -51,7 +62,11 @@ public abstract class AbstractNode {
      * @return the total time
      */
     public double getTotalTime() {
-        return this.totalTime.longValue() / 1000d;
+        return this.totalTime / 1000d;
+    }
+
+    int getSubtreeSize() {
+        return this.subtreeSize;
     }
 
     /**
@@ -60,54 +75,81 @@ public abstract class AbstractNode {
      * @param other the other node
      */
     public void merge(AbstractNode other) {
-        this.totalTime.add(other.totalTime.longValue());
-        for (Map.Entry<StackTraceNode.Description, StackTraceNode> child : other.children.entrySet()) {
-            resolveChild(child.getKey()).merge(child.getValue());
+        this.subtreeSize += other.subtreeSize;
+
+        // walk the trees iteratively, so very deep trees can't overflow the stack
+        Deque<AbstractNode[]> stack = new ArrayDeque<>();
+        stack.push(new AbstractNode[]{this, other});
+        while (!stack.isEmpty()) {
+            AbstractNode[] pair = stack.pop();
+            AbstractNode target = pair[0];
+            AbstractNode source = pair[1];
+
+            target.totalTime += source.totalTime;
+            for (StackTraceNode child : source.children.values()) {
+                StackTraceNode result = target.children.get(child.getFrameId(), child.getParentLineNumber());
+                if (result == null) {
+                    result = target.children.putIfAbsent(new StackTraceNode(child.getFrameId(), child.getDescription()));
+                }
+                stack.push(new AbstractNode[]{result, child});
+            }
         }
     }
 
-    private AbstractNode resolveChild(StackTraceNode.Description description) {
-        StackTraceNode result = this.children.get(description); // fast path
-        if (result != null) {
-            return result;
+    /**
+     * Populates the children of this node from the children of the given node in a
+     * {@link CallTree}.
+     *
+     * @param tree the call tree
+     * @param node the index of the node in the tree whose children should be copied
+     * @param frameTable the table the frame ids in the tree were interned in
+     */
+    void materializeChildren(CallTree tree, int node, FrameTable frameTable) {
+        // walk the tree iteratively, so very deep trees can't overflow the stack.
+        // each node is visited twice: once to create its children, then again once they have
+        // been visited, to add the size of its subtree to its parent
+        Deque<Visit> stack = new ArrayDeque<>();
+        stack.push(new Visit(this, null, node));
+        while (!stack.isEmpty()) {
+            Visit visit = stack.pop();
+            if (visit.expanded) {
+                if (visit.parent != null) {
+                    visit.parent.subtreeSize += visit.node.subtreeSize;
+                }
+                continue;
+            }
+            visit.expanded = true;
+            stack.push(visit);
+
+            // the line of code which called each of the children
+            // (root nodes have a negative frame id)
+            int frameId = tree.frame(visit.treeNode);
+            int parentLineNumber = frameId < 0 ? StackTraceNode.NULL_LINE_NUMBER : frameTable.get(frameId).getLineNumber();
+
+            for (int child = tree.firstChild(visit.treeNode); child != CallTree.NONE; child = tree.nextSibling(child)) {
+                int childFrameId = tree.frame(child);
+                FrameTable.Frame frame = frameTable.get(childFrameId);
+
+                AbstractNode childNode = visit.node.children.putIfAbsent(new StackTraceNode(childFrameId,
+                        new StackTraceNode.Description(frame.getClassName(), frame.getMethodName(), frame.getLineNumber(), parentLineNumber)
+                ));
+                childNode.totalTime += tree.time(child);
+                stack.push(new Visit(childNode, visit.node, child));
+            }
         }
-        return this.children.computeIfAbsent(description, name -> new StackTraceNode(description));
     }
 
-    public void log(StackTraceElement[] elements, long time) {
-        log(elements, 0, time);
-    }
-    
-    private void log(StackTraceElement[] elements, int offset, long time) {
-        this.totalTime.add(time);
+    private static final class Visit {
+        private final AbstractNode node;
+        private final AbstractNode parent;
+        private final int treeNode;
+        private boolean expanded = false;
 
-        if (offset >= MAX_STACK_DEPTH) {
-            return;
+        Visit(AbstractNode node, AbstractNode parent, int treeNode) {
+            this.node = node;
+            this.parent = parent;
+            this.treeNode = treeNode;
         }
-        
-        if (elements.length - offset == 0) {
-            return;
-        }
-
-        // the first element in the array is the top of the call stack, and the last is the root
-        // offset starts at 0.
-
-        // pointer is determined by subtracting the offset from the index of the last element
-        int pointer = (elements.length - 1) - offset;
-        StackTraceElement element = elements[pointer];
-
-        // the parent stack element is located at pointer+1.
-        // when the current offset is 0, we know the current pointer is at the last element in the
-        // array (the root) and therefore there is no parent.
-        StackTraceElement parent = offset == 0 ? null : elements[pointer + 1];
-
-        // get the line number of the parent element - the line which called "us"
-        int parentLineNumber = parent == null ? StackTraceNode.NULL_LINE_NUMBER : parent.getLineNumber();
-
-        // resolve a child element within the structure for the element at pointer
-        AbstractNode child = resolveChild(new StackTraceNode.Description(element.getClassName(), element.getMethodName(), element.getLineNumber(), parentLineNumber));
-        // call the log method on the found child, with an incremented offset.
-        child.log(elements, offset + 1, time);
     }
 
     protected List<StackTraceNode> exportChildren(MergeMode mergeMode) {
@@ -115,22 +157,21 @@ public abstract class AbstractNode {
             return Collections.emptyList();
         }
 
-        List<StackTraceNode> list = new ArrayList<>(this.children.size());
+        StackTraceNode[] children = this.children.values();
+        if (children.length == 1) {
+            return Collections.singletonList(children[0]);
+        }
 
-        outer:
-        for (StackTraceNode child : this.children.values()) {
-            // attempt to find an existing node we can merge into
-            for (StackTraceNode other : list) {
-                if (mergeMode.shouldMerge(other, child)) {
-                    other.merge(child);
-                    continue outer;
-                }
+        // group the children by merge key, merging each into the first child with the same key
+        Map<MergeMode.Key, StackTraceNode> merged = new HashMap<>((int) (children.length / 0.75f) + 1);
+        for (StackTraceNode child : children) {
+            StackTraceNode existing = merged.putIfAbsent(mergeMode.getKey(child), child);
+            if (existing != null) {
+                existing.merge(child);
             }
-
-            // just add
-            list.add(child);
         }
 
+        List<StackTraceNode> list = new ArrayList<>(merged.values());
         list.sort(null);
         return list;
     }
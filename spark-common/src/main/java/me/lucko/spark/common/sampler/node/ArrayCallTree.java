@@ -0,0 +1,127 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import java.util.Arrays;
+
+/**
+ * A {@link CallTree} stored in growable primitive arrays on the heap.
+ */
+final class ArrayCallTree extends CallTree {
+    private static final int INITIAL_CAPACITY = 64; // must be a power of two
+
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] frames = new int[INITIAL_CAPACITY];
+    private int[] firstChildren = new int[INITIAL_CAPACITY];
+    private int[] nextSiblings = new int[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /** Open-addressed index of (parent, frame id) -> node, NONE for empty slots */
+    private int[] index;
+
+    ArrayCallTree() {
+        resetIndex(INITIAL_CAPACITY * 2);
+        addNode(NONE, NONE, NONE);
+    }
+
+    @Override
+    int size() {
+        return this.size;
+    }
+
+    @Override
+    int parent(int node) {
+        return this.parents[node];
+    }
+
+    @Override
+    int frame(int node) {
+        return this.frames[node];
+    }
+
+    @Override
+    int firstChild(int node) {
+        return this.firstChildren[node];
+    }
+
+    @Override
+    int nextSibling(int node) {
+        return this.nextSiblings[node];
+    }
+
+    @Override
+    long time(int node) {
+        return this.times[node];
+    }
+
+    @Override
+    void addTime(int node, long time) {
+        this.times[node] += time;
+    }
+
+    @Override
+    void setFirstChild(int node, int child) {
+        this.firstChildren[node] = child;
+    }
+
+    @Override
+    void addNode(int parent, int frameId, int nextSibling) {
+        int node = this.size;
+        if (node == this.parents.length) {
+            int capacity = node * 2;
+            this.parents = Arrays.copyOf(this.parents, capacity);
+            this.frames = Arrays.copyOf(this.frames, capacity);
+            this.firstChildren = Arrays.copyOf(this.firstChildren, capacity);
+            this.nextSiblings = Arrays.copyOf(this.nextSiblings, capacity);
+            this.times = Arrays.copyOf(this.times, capacity);
+        }
+
+        this.parents[node] = parent;
+        this.frames[node] = frameId;
+        this.firstChildren[node] = NONE;
+        this.nextSiblings[node] = nextSibling;
+        this.times[node] = 0;
+        this.size++;
+    }
+
+    @Override
+    int indexCapacity() {
+        return this.index.length;
+    }
+
+    @Override
+    int getIndex(int slot) {
+        return this.index[slot];
+    }
+
+    @Override
+    void setIndex(int slot, int node) {
+        this.index[slot] = node;
+    }
+
+    @Override
+    void resetIndex(int capacity) {
+        this.index = new int[capacity];
+        Arrays.fill(this.index, NONE);
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A compact call tree, stored as a set of primitive columns (one element per node).
+ *
+ * <p>Each node records its parent, {@link FrameTable frame id}, first child, next sibling and
+ * accumulated time. Children are found using a single open-addressed index over the whole tree,
+ * keyed by (parent, frame id), so leaf nodes don't need any storage of their own.</p>
+ *
+ * <p>The parent line number of a node is always the line number of its parent's frame, so it
+ * doesn't need to be stored.</p>
+ *
+ * <p>Subclasses provide the storage for the columns and the index. Not thread safe.</p>
+ */
+abstract class CallTree {
+    /** The index of the root node */
+    static final int ROOT = 0;
+    /** Marker for "no node" */
+    static final int NONE = -1;
+
+    /**
+     * Logs the given stack against the tree.
+     *
+     * @param root the node to log the stack under
+     * @param stack the ids of the frames in the stack, top of the stack first
+     * @param time the time to add, in microseconds
+     */
+    void log(int root, int[] stack, long time) {
+        int node = root;
+        addTime(node, time);
+
+        // the first element in the array is the top of the call stack, and the last is the root
+        for (int i = stack.length - 1; i >= 0; i--) {
+            node = resolveChild(node, stack[i]);
+            addTime(node, time);
+        }
+    }
+
+    /**
+     * Adds the nodes and times recorded under a node in another tree to this tree.
+     *
+     * @param root the node to merge into
+     * @param other the other tree
+     * @param otherRoot the node in the other tree to merge from
+     */
+    void merge(int root, CallTree other, int otherRoot) {
+        merge(root, other, otherRoot, IntUnaryOperator.identity());
+    }
+
+    /**
+     * Adds the nodes and times recorded under a node in another tree to this tree, where
+     * the frame ids in the other tree were interned in a different {@link FrameTable}.
+     *
+     * @param root the node to merge into
+     * @param other the other tree
+     * @param otherRoot the node in the other tree to merge from
+     * @param frameMapping maps frame ids in the other tree to frame ids in this tree
+     */
+    void merge(int root, CallTree other, int otherRoot, IntUnaryOperator frameMapping) {
+        addTime(root, other.time(otherRoot));
+        for (int child = other.firstChild(otherRoot); child != NONE; child = other.nextSibling(child)) {
+            merge(resolveChild(root, frameMapping.applyAsInt(other.frame(child))), other, child, frameMapping);
+        }
+    }
+
+    /**
+     * Gets the child of the given node with the given frame id, creating it if necessary.
+     *
+     * @param parent the parent node
+     * @param frameId the frame id
+     * @return the child node
+     */
+    int resolveChild(int parent, int frameId) {
+        int mask = indexCapacity() - 1;
+        int i = hash(parent, frameId) & mask;
+        while (true) {
+            int node = getIndex(i);
+            if (node == NONE) {
+                break;
+            }
+            if (frame(node) == frameId && parent(node) == parent) {
+                return node;
+            }
+            i = (i + 1) & mask;
+        }
+
+        int node = size();
+        addNode(parent, frameId, firstChild(parent));
+        setFirstChild(parent, node);
+
+        setIndex(i, node);
+        if (size() * 2 > indexCapacity()) {
+            rebuildIndex(indexCapacity() * 2);
+        }
+        return node;
+    }
+
+    /**
+     * Rebuilds the index from the stored nodes.
+     *
+     * @param capacity the index capacity, must be a power of two
+     */
+    void rebuildIndex(int capacity) {
+        resetIndex(capacity);
+        int mask = capacity - 1;
+        int size = size();
+        for (int node = 0; node < size; node++) {
+            int parent = parent(node);
+            if (parent == NONE) {
+                continue;
+            }
+            int i = hash(parent, frame(node)) & mask;
+            while (getIndex(i) != NONE) {
+                i = (i + 1) & mask;
+            }
+            setIndex(i, node);
+        }
+    }
+
+    private static int hash(int parent, int frameId) {
+        int h = (parent * 31 + frameId) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /* node storage */
+
+    abstract int size();
+
+    abstract int parent(int node);
+
+    abstract int frame(int node);
+
+    abstract int firstChild(int node);
+
+    abstract int nextSibling(int node);
+
+    abstract long time(int node);
+
+    abstract void addTime(int node, long time);
+
+    abstract void setFirstChild(int node, int child);
+
+    /**
+     * Appends a new node, with no children and no time.
+     *
+     * @param parent the parent node
+     * @param frameId the frame id
+     * @param nextSibling the next sibling of the node
+     */
+    abstract void addNode(int parent, int frameId, int nextSibling);
+
+    /* index storage */
+
+    abstract int indexCapacity();
+
+    abstract int getIndex(int slot);
+
+    abstract void setIndex(int slot, int node);
+
+    /**
+     * Replaces the index with an empty one of the given capacity.
+     *
+     * @param capacity the capacity
+     */
+    abstract void resetIndex(int capacity);
+
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+/**
+ * An open-addressed map of the children of an {@link AbstractNode}, keyed by
+ * (frame id, parent line number).
+ *
+ * <p>The key is read from the node itself, so the table only needs to store the nodes.</p>
+ *
+ * <p>Not thread safe - nodes are only ever written to by a single aggregator shard.</p>
+ */
+final class ChildNodeMap {
+    private static final StackTraceNode[] EMPTY = new StackTraceNode[0];
+    private static final int INITIAL_CAPACITY = 4; // must be a power of two
+
+    private StackTraceNode[] table = EMPTY;
+    private int size = 0;
+
+    StackTraceNode get(int frameId, int parentLineNumber) {
+        StackTraceNode[] table = this.table;
+        if (table.length == 0) {
+            return null;
+        }
+
+        int mask = table.length - 1;
+        for (int i = hash(frameId, parentLineNumber) & mask; ; i = (i + 1) & mask) {
+            StackTraceNode node = table[i];
+            if (node == null) {
+                return null;
+            }
+            if (node.getFrameId() == frameId && node.getParentLineNumber() == parentLineNumber) {
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Adds the node to the map, unless a node with the same key is already present.
+     *
+     * @param node the node to add
+     * @return the node in the map
+     */
+    StackTraceNode putIfAbsent(StackTraceNode node) {
+        StackTraceNode existing = get(node.getFrameId(), node.getParentLineNumber());
+        if (existing != null) {
+            return existing;
+        }
+
+        if ((this.size + 1) * 2 > this.table.length) {
+            this.table = rehash(this.table, Math.max(INITIAL_CAPACITY, this.table.length * 2));
+        }
+        put(this.table, node);
+        this.size++;
+        return node;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns a copy of the nodes in the map.
+     *
+     * @return the nodes
+     */
+    StackTraceNode[] values() {
+        StackTraceNode[] values = new StackTraceNode[this.size];
+        int i = 0;
+        for (StackTraceNode node : this.table) {
+            if (node != null) {
+                values[i++] = node;
+            }
+        }
+        return values;
+    }
+
+    private static void put(StackTraceNode[] table, StackTraceNode node) {
+        int mask = table.length - 1;
+        int i = hash(node.getFrameId(), node.getParentLineNumber()) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = node;
+    }
+
+    private static StackTraceNode[] rehash(StackTraceNode[] table, int capacity) {
+        StackTraceNode[] newTable = new StackTraceNode[capacity];
+        for (StackTraceNode node : table) {
+            if (node != null) {
+                put(newTable, node);
+            }
+        }
+        return newTable;
+    }
+
+    private static int hash(int frameId, int parentLineNumber) {
+        int h = (frameId * 31 + parentLineNumber) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+/**
+ * Interns {@link StackTraceElement}s (class + method + line) to stable int frame ids.
+ *
+ * <p>Lookups of frames which have already been seen are lock-free and do not allocate.
+ * New frames are inserted whilst holding a lock.</p>
+ */
+public final class FrameTable {
+    private static final int INITIAL_CAPACITY = 1024; // must be a power of two
+
+    /** The open-addressed lookup table, keyed by frame hash */
+    private volatile Frame[] table = new Frame[INITIAL_CAPACITY];
+    /** The interned frames, indexed by id */
+    private volatile Frame[] frames = new Frame[INITIAL_CAPACITY];
+
+    // guarded by 'this'
+    private int size = 0;
+    private Listener listener = null;
+
+    /**
+     * Sets a listener to be called (whilst holding the table lock) each time a new frame
+     * is interned.
+     *
+     * @param listener the listener
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the id of the frame described by the given element, interning it if necessary.
+     *
+     * @param element the element
+     * @return the frame id
+     */
+    public int intern(StackTraceElement element) {
+        return intern(element.getClassName(), element.getMethodName(), element.getLineNumber());
+    }
+
+    /**
+     * Gets the id of the frame described by the given attributes, interning it if necessary.
+     *
+     * @param className the class name
+     * @param methodName the method name
+     * @param lineNumber the line number
+     * @return the frame id
+     */
+    public int intern(String className, String methodName, int lineNumber) {
+        int hash = hash(className, methodName, lineNumber);
+
+        // fast path
+        Frame frame = find(this.table, hash, className, methodName, lineNumber);
+        if (frame != null) {
+            return frame.id;
+        }
+
+        synchronized (this) {
+            frame = find(this.table, hash, className, methodName, lineNumber);
+            if (frame != null) {
+                return frame.id;
+            }
+            frame = insert(new Frame(this.size, hash, className, methodName, lineNumber));
+            if (this.listener != null) {
+                this.listener.onIntern(frame);
+            }
+            return frame.id;
+        }
+    }
+
+    /**
+     * Gets the frame with the given id.
+     *
+     * @param id the frame id
+     * @return the frame
+     */
+    public Frame get(int id) {
+        Frame[] frames = this.frames;
+        if (id < frames.length) {
+            Frame frame = frames[id];
+            if (frame != null) {
+                return frame;
+            }
+        }
+
+        // the id was obtained from another thread and the write isn't visible yet
+        synchronized (this) {
+            if (id >= this.size) {
+                throw new IllegalArgumentException("Unknown frame id: " + id);
+            }
+            return this.frames[id];
+        }
+    }
+
+    /**
+     * Gets the number of interned frames.
+     *
+     * @return the size
+     */
+    public int size() {
+        synchronized (this) {
+            return this.size;
+        }
+    }
+
+    // guarded by 'this'
+    private Frame insert(Frame frame) {
+        Frame[] frames = this.frames;
+        if (frame.id == frames.length) {
+            Frame[] newFrames = new Frame[frames.length * 2];
+            System.arraycopy(frames, 0, newFrames, 0, frames.length);
+            frames = newFrames;
+        }
+        frames[frame.id] = frame;
+        this.frames = frames;
+
+        Frame[] table = this.table;
+        if ((this.size + 1) * 2 > table.length) {
+            table = rehash(table, table.length * 2);
+        }
+        put(table, frame);
+        this.table = table;
+
+        this.size++;
+        return frame;
+    }
+
+    private static Frame find(Frame[] table, int hash, String className, String methodName, int lineNumber) {
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Frame frame = table[i];
+            if (frame == null) {
+                return null;
+            }
+            if (frame.hash == hash && frame.lineNumber == lineNumber && frame.methodName.equals(methodName) && frame.className.equals(className)) {
+                return frame;
+            }
+        }
+    }
+
+    private static void put(Frame[] table, Frame frame) {
+        int mask = table.length - 1;
+        int i = frame.hash & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = frame;
+    }
+
+    private static Frame[] rehash(Frame[] table, int capacity) {
+        Frame[] newTable = new Frame[capacity];
+        for (Frame frame : table) {
+            if (frame != null) {
+                put(newTable, frame);
+            }
+        }
+        return newTable;
+    }
+
+    private static int hash(String className, String methodName, int lineNumber) {
+        int h = className.hashCode();
+        h = 31 * h + methodName.hashCode();
+        h = 31 * h + lineNumber;
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * An interned frame. Instances are immutable and so can be safely shared between threads.
+     */
+    public static final class Frame {
+        private final int id;
+        private final int hash;
+        private final String className;
+        private final String methodName;
+        private final int lineNumber;
+
+        Frame(int id, int hash, String className, String methodName, int lineNumber) {
+            this.id = id;
+            this.hash = hash;
+            this.className = className;
+            this.methodName = methodName;
+            this.lineNumber = lineNumber;
+        }
+
+        public int getId() {
+            return this.id;
+        }
+
+        public String getClassName() {
+            return this.className;
+        }
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+
+        public int getLineNumber() {
+            return this.lineNumber;
+        }
+    }
+
+    /**
+     * Listens for new frames being interned.
+     */
+    public interface Listener {
+        void onIntern(Frame frame);
+    }
+
+}
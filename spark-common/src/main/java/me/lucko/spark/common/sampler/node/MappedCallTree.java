@@ -0,0 +1,250 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link CallTree} stored in a memory-mapped file, outside of the Java heap.
+ *
+ * <p>The file is mapped in fixed size segments, so the tree can grow without remapping
+ * existing nodes. The index is not persisted - it is rebuilt (in direct memory) when an
+ * existing file is opened.</p>
+ *
+ * <p>The tree holds the data for multiple thread groups. Each group has a root node
+ * directly under the {@link #ROOT}, identified by a negative "frame id".</p>
+ */
+public final class MappedCallTree extends CallTree implements AutoCloseable {
+    private static final int MAGIC = 0x5350524B; // "SPRK"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SIZE_FIELD = 8;
+
+    private static final int RECORD_SIZE = 24;
+    private static final int PARENT = 0;
+    private static final int FRAME = 4;
+    private static final int FIRST_CHILD = 8;
+    private static final int NEXT_SIBLING = 12;
+    private static final int TIME = 16;
+
+    private static final int SEGMENT_SHIFT = 18; // 2^18 nodes (6MB) per segment
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+    private static final long SEGMENT_SIZE = (long) RECORD_SIZE << SEGMENT_SHIFT;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private int size;
+
+    /** Open-addressed index of (parent, frame id) -> node, held in direct memory */
+    private IntBuffer index;
+    private int indexCapacity;
+
+    /**
+     * Opens (or creates) the tree stored in the given file.
+     *
+     * @param file the file
+     * @throws IOException if an error occurs
+     */
+    public MappedCallTree(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean exists = this.channel.size() >= HEADER_SIZE;
+        this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        if (exists) {
+            if (this.header.getInt(HEADER_MAGIC) != MAGIC || this.header.getInt(HEADER_VERSION) != VERSION) {
+                this.channel.close();
+                throw new IOException("Unrecognised call tree file: " + file);
+            }
+
+            this.size = this.header.getInt(HEADER_SIZE_FIELD);
+            for (int i = 0; i <= (this.size - 1) >>> SEGMENT_SHIFT; i++) {
+                mapSegment();
+            }
+
+            int capacity = 128;
+            while (this.size * 2 > capacity) {
+                capacity *= 2;
+            }
+            rebuildIndex(capacity);
+        } else {
+            this.header.putInt(HEADER_MAGIC, MAGIC);
+            this.header.putInt(HEADER_VERSION, VERSION);
+            this.header.putInt(HEADER_SIZE_FIELD, 0);
+            resetIndex(128);
+            addNode(NONE, NONE, NONE);
+        }
+    }
+
+    /**
+     * Gets the root node for the group with the given id, creating it if necessary.
+     *
+     * @param groupId the group id
+     * @return the group root
+     */
+    public int resolveGroupRoot(int groupId) {
+        return resolveChild(ROOT, -2 - groupId);
+    }
+
+    /**
+     * Gets the group ids which have a root node in the tree.
+     *
+     * @return the group ids
+     */
+    public int[] getGroupIds() {
+        List<Integer> ids = new ArrayList<>();
+        for (int node = firstChild(ROOT); node != NONE; node = nextSibling(node)) {
+            ids.add(-2 - frame(node));
+        }
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Flushes any changes to the underlying storage device.
+     */
+    public void force() {
+        this.header.force();
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        this.channel.close();
+    }
+
+    private void mapSegment() throws IOException {
+        long position = HEADER_SIZE + this.segments.size() * SEGMENT_SIZE;
+        this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE));
+    }
+
+    private MappedByteBuffer segment(int node) {
+        return this.segments.get(node >>> SEGMENT_SHIFT);
+    }
+
+    private static int offset(int node) {
+        return (node & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    @Override
+    int size() {
+        return this.size;
+    }
+
+    @Override
+    int parent(int node) {
+        return segment(node).getInt(offset(node) + PARENT);
+    }
+
+    @Override
+    int frame(int node) {
+        return segment(node).getInt(offset(node) + FRAME);
+    }
+
+    @Override
+    int firstChild(int node) {
+        return segment(node).getInt(offset(node) + FIRST_CHILD);
+    }
+
+    @Override
+    int nextSibling(int node) {
+        return segment(node).getInt(offset(node) + NEXT_SIBLING);
+    }
+
+    @Override
+    long time(int node) {
+        return segment(node).getLong(offset(node) + TIME);
+    }
+
+    @Override
+    void addTime(int node, long time) {
+        MappedByteBuffer segment = segment(node);
+        int offset = offset(node) + TIME;
+        segment.putLong(offset, segment.getLong(offset) + time);
+    }
+
+    @Override
+    void setFirstChild(int node, int child) {
+        segment(node).putInt(offset(node) + FIRST_CHILD, child);
+    }
+
+    @Override
+    void addNode(int parent, int frameId, int nextSibling) {
+        int node = this.size;
+        if ((node >>> SEGMENT_SHIFT) == this.segments.size()) {
+            try {
+                mapSegment();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        MappedByteBuffer segment = segment(node);
+        int offset = offset(node);
+        segment.putInt(offset + PARENT, parent);
+        segment.putInt(offset + FRAME, frameId);
+        segment.putInt(offset + FIRST_CHILD, NONE);
+        segment.putInt(offset + NEXT_SIBLING, nextSibling);
+        segment.putLong(offset + TIME, 0);
+
+        // only count the node once its record has been written
+        this.size++;
+        this.header.putInt(HEADER_SIZE_FIELD, this.size);
+    }
+
+    @Override
+    int indexCapacity() {
+        return this.indexCapacity;
+    }
+
+    @Override
+    int getIndex(int slot) {
+        return this.index.get(slot);
+    }
+
+    @Override
+    void setIndex(int slot, int node) {
+        this.index.put(slot, node);
+    }
+
+    @Override
+    void resetIndex(int capacity) {
+        this.index = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+        for (int i = 0; i < capacity; i++) {
+            this.index.put(i, NONE);
+        }
+        this.indexCapacity = capacity;
+    }
+
+}
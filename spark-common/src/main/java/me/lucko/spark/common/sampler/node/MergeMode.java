@@ -61,30 +61,60 @@ public final class MergeMode {
      * @return if the nodes should be merged
      */
     public boolean shouldMerge(StackTraceNode n1, StackTraceNode n2) {
-        // are the class names the same?
-        if (!n1.getClassName().equals(n2.getClassName())) {
-            return false;
-        }
+        return getKey(n1).equals(getKey(n2));
+    }
 
-        // are the method names the same?
-        if (!n1.getMethodName().equals(n2.getMethodName())) {
-            return false;
-        }
+    /**
+     * Gets the key used to merge the given node. Nodes with equal keys should be merged.
+     *
+     * @param node the node
+     * @return the key
+     */
+    Key getKey(StackTraceNode node) {
+        return new Key(
+                node.getClassName(),
+                node.getMethodName(),
+                // is it the same method? (overloads share a name)
+                node.getMethodDesc(this.methodDisambiguator),
+                // did the same line of code call this method?
+                this.separateParentCalls ? node.getParentLineNumber() : StackTraceNode.NULL_LINE_NUMBER
+        );
+    }
 
-        // is the parent line the same? (did the same line of code call this method?)
-        if (this.separateParentCalls && n1.getParentLineNumber() != n2.getParentLineNumber()) {
-            return false;
+    /**
+     * The attributes of a {@link StackTraceNode} which determine if it should be merged.
+     */
+    static final class Key {
+        private final String className;
+        private final String methodName;
+        private final String methodDesc; // nullable
+        private final int parentLineNumber;
+        private final int hash;
+
+        Key(String className, String methodName, String methodDesc, int parentLineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+            this.parentLineNumber = parentLineNumber;
+            this.hash = Objects.hash(className, methodName, methodDesc, parentLineNumber);
         }
 
-        // are the method descriptions the same? (is it the same method?)
-        String desc1 = this.methodDisambiguator.disambiguate(n1).map(MethodDisambiguator.MethodDescription::getDesc).orElse(null);
-        String desc2 = this.methodDisambiguator.disambiguate(n2).map(MethodDisambiguator.MethodDescription::getDesc).orElse(null);
-
-        if (desc1 == null && desc2 == null) {
-            return true;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return this.hash == key.hash &&
+                    this.parentLineNumber == key.parentLineNumber &&
+                    this.className.equals(key.className) &&
+                    this.methodName.equals(key.methodName) &&
+                    Objects.equals(this.methodDesc, key.methodDesc);
         }
 
-        return Objects.equals(desc1, desc2);
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
     }
 
 }
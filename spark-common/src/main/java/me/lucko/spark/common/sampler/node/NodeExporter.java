@@ -0,0 +1,123 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package me.lucko.spark.common.sampler.node;
+
+import me.lucko.spark.proto.SparkProtos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exports {@link AbstractNode}s to protobuf.
+ *
+ * <p>The nodes are walked iteratively, so very deep trees can't overflow the stack. When
+ * running in a {@link java.util.concurrent.ForkJoinPool}, large subtrees are forked and
+ * exported in parallel.</p>
+ */
+final class NodeExporter {
+    private NodeExporter() {}
+
+    /** The minimum size of a subtree to export it in a separate task */
+    private static final int FORK_THRESHOLD = 1024;
+
+    /**
+     * Exports the (merged and sorted) children of the given node.
+     *
+     * @param node the node
+     * @param mergeMode the merge mode
+     * @return the exported children
+     */
+    static List<SparkProtos.StackTraceNode> exportChildren(AbstractNode node, MergeMode mergeMode) {
+        boolean fork = ForkJoinTask.inForkJoinPool();
+
+        Deque<Frame> stack = new ArrayDeque<>();
+        Frame root = new Frame(null, node.exportChildren(mergeMode));
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.next < frame.children.size()) {
+                StackTraceNode child = frame.children.get(frame.next++);
+                if (fork && child.getSubtreeSize() >= FORK_THRESHOLD) {
+                    frame.results.add(new ExportTask(child, mergeMode).fork());
+                } else {
+                    stack.push(new Frame(child.toProtoBuilder(mergeMode), child.exportChildren(mergeMode)));
+                }
+            } else {
+                // all of the children have been visited
+                stack.pop();
+                if (!stack.isEmpty()) {
+                    stack.peek().results.add(frame.builder.addAllChildren(frame.resolveResults()).build());
+                }
+            }
+        }
+
+        return root.resolveResults();
+    }
+
+    /**
+     * A node being exported.
+     */
+    private static final class Frame {
+        private final SparkProtos.StackTraceNode.Builder builder;
+        private final List<StackTraceNode> children;
+        private int next = 0;
+
+        /** The exported children, or the tasks exporting them */
+        private final List<Object> results;
+
+        Frame(SparkProtos.StackTraceNode.Builder builder, List<StackTraceNode> children) {
+            this.builder = builder;
+            this.children = children;
+            this.results = new ArrayList<>(children.size());
+        }
+
+        List<SparkProtos.StackTraceNode> resolveResults() {
+            List<SparkProtos.StackTraceNode> results = new ArrayList<>(this.results.size());
+            for (Object result : this.results) {
+                if (result instanceof ExportTask) {
+                    results.add(((ExportTask) result).join());
+                } else {
+                    results.add((SparkProtos.StackTraceNode) result);
+                }
+            }
+            return results;
+        }
+    }
+
+    private static final class ExportTask extends RecursiveTask<SparkProtos.StackTraceNode> {
+        private final StackTraceNode node;
+        private final MergeMode mergeMode;
+
+        ExportTask(StackTraceNode node, MergeMode mergeMode) {
+            this.node = node;
+            this.mergeMode = mergeMode;
+        }
+
+        @Override
+        protected SparkProtos.StackTraceNode compute() {
+            return this.node.toProto(this.mergeMode);
+        }
+    }
+}
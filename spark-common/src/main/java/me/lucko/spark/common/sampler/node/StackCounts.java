@@ -0,0 +1,121 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressed map of {@link StackTable stack id} to accumulated time.
+ *
+ * <p>Not thread safe.</p>
+ */
+final class StackCounts {
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 64; // must be a power of two
+
+    private int[] keys = newKeys(INITIAL_CAPACITY);
+    private long[] values = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    void add(int stackId, long time) {
+        int mask = this.keys.length - 1;
+        int i = hash(stackId) & mask;
+        while (true) {
+            int key = this.keys[i];
+            if (key == stackId) {
+                this.values[i] += time;
+                return;
+            }
+            if (key == EMPTY) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+
+        this.keys[i] = stackId;
+        this.values[i] = time;
+        if (++this.size * 2 > this.keys.length) {
+            rehash(this.keys.length * 2);
+        }
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Passes each entry to the consumer and then clears the map.
+     *
+     * @param consumer the consumer
+     */
+    void drain(Consumer consumer) {
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.keys[i] != EMPTY) {
+                consumer.accept(this.keys[i], this.values[i]);
+            }
+        }
+
+        if (this.keys.length == INITIAL_CAPACITY) {
+            Arrays.fill(this.keys, EMPTY);
+        } else {
+            this.keys = newKeys(INITIAL_CAPACITY);
+            this.values = new long[INITIAL_CAPACITY];
+        }
+        this.size = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+        this.keys = newKeys(capacity);
+        this.values = new long[capacity];
+
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            int key = oldKeys[j];
+            if (key == EMPTY) {
+                continue;
+            }
+            int i = hash(key) & mask;
+            while (this.keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            this.keys[i] = key;
+            this.values[i] = oldValues[j];
+        }
+    }
+
+    private static int[] newKeys(int capacity) {
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    interface Consumer {
+        void accept(int stackId, long time);
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import java.util.Arrays;
+
+/**
+ * Interns whole stack traces (as sequences of {@link FrameTable frame ids}) to stable
+ * int stack ids.
+ *
+ * <p>This allows identical stacks to be counted instead of walked down the node tree
+ * each time they are sampled. Like the {@link FrameTable}, lookups of stacks which have
+ * already been seen are lock-free.</p>
+ *
+ * <p>Stacks are never removed from a table, so aggregators replace their tables
+ * periodically. Once the samples which refer to a table have been flushed into the
+ * call trees, the table (and the stacks it holds) can be collected.</p>
+ */
+public final class StackTable {
+    private static final int INITIAL_CAPACITY = 256; // must be a power of two
+
+    /** A per-thread buffer used to hold frame ids whilst looking up a stack */
+    private static final ThreadLocal<int[]> BUFFER = ThreadLocal.withInitial(() -> new int[AbstractNode.MAX_STACK_DEPTH]);
+
+    /** The open-addressed lookup table, keyed by stack hash */
+    private volatile Stack[] table = new Stack[INITIAL_CAPACITY];
+    /** The interned stacks, indexed by id */
+    private volatile Stack[] stacks = new Stack[INITIAL_CAPACITY];
+
+    // guarded by 'this'
+    private int size = 0;
+
+    /**
+     * Gets the id of the given stack trace, interning it (and its frames) if necessary.
+     *
+     * <p>Only the {@link AbstractNode#MAX_STACK_DEPTH} frames closest to the root of the
+     * stack are retained.</p>
+     *
+     * @param frameTable the frame table
+     * @param elements the stack trace elements, top of the stack first
+     * @return the stack id
+     */
+    public int intern(FrameTable frameTable, StackTraceElement[] elements) {
+        int length = Math.min(elements.length, AbstractNode.MAX_STACK_DEPTH);
+        int offset = elements.length - length;
+
+        int[] buffer = BUFFER.get();
+        for (int i = 0; i < length; i++) {
+            buffer[i] = frameTable.intern(elements[offset + i]);
+        }
+        return intern(buffer, length);
+    }
+
+    /**
+     * Gets the id of the stack formed by the given frame ids, interning it if necessary.
+     *
+     * @param frames the frame ids, top of the stack first
+     * @param length the number of frame ids to read from the array
+     * @return the stack id
+     */
+    public int intern(int[] frames, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + frames[i];
+        }
+        hash *= 0x9E3779B9;
+        hash ^= hash >>> 16;
+
+        // fast path
+        Stack stack = find(this.table, hash, frames, length);
+        if (stack != null) {
+            return stack.id;
+        }
+
+        synchronized (this) {
+            stack = find(this.table, hash, frames, length);
+            if (stack != null) {
+                return stack.id;
+            }
+            return insert(new Stack(this.size, hash, Arrays.copyOf(frames, length))).id;
+        }
+    }
+
+    /**
+     * Gets the frame ids of the stack with the given id, top of the stack first.
+     *
+     * @param id the stack id
+     * @return the frame ids
+     */
+    public int[] get(int id) {
+        Stack[] stacks = this.stacks;
+        if (id < stacks.length) {
+            Stack stack = stacks[id];
+            if (stack != null) {
+                return stack.frames;
+            }
+        }
+
+        // the id was obtained from another thread and the write isn't visible yet
+        synchronized (this) {
+            if (id >= this.size) {
+                throw new IllegalArgumentException("Unknown stack id: " + id);
+            }
+            return this.stacks[id].frames;
+        }
+    }
+
+    // guarded by 'this'
+    private Stack insert(Stack stack) {
+        Stack[] stacks = this.stacks;
+        if (stack.id == stacks.length) {
+            stacks = Arrays.copyOf(stacks, stacks.length * 2);
+        }
+        stacks[stack.id] = stack;
+        this.stacks = stacks;
+
+        Stack[] table = this.table;
+        if ((this.size + 1) * 2 > table.length) {
+            Stack[] newTable = new Stack[table.length * 2];
+            for (Stack s : table) {
+                if (s != null) {
+                    put(newTable, s);
+                }
+            }
+            table = newTable;
+        }
+        put(table, stack);
+        this.table = table;
+
+        this.size++;
+        return stack;
+    }
+
+    private static Stack find(Stack[] table, int hash, int[] frames, int length) {
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Stack stack = table[i];
+            if (stack == null) {
+                return null;
+            }
+            if (stack.hash == hash && stack.matches(frames, length)) {
+                return stack;
+            }
+        }
+    }
+
+    private static void put(Stack[] table, Stack stack) {
+        int mask = table.length - 1;
+        int i = stack.hash & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = stack;
+    }
+
+    private static final class Stack {
+        private final int id;
+        private final int hash;
+        private final int[] frames;
+
+        Stack(int id, int hash, int[] frames) {
+            this.id = id;
+            this.hash = hash;
+            this.frames = frames;
+        }
+
+        boolean matches(int[] frames, int length) {
+            if (this.frames.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (this.frames[i] != frames[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -36,13 +36,29 @@ public final class StackTraceNode extends AbstractNode implements Comparable<Sta
      */
     public static final int NULL_LINE_NUMBER = -1;
 
+    /** The id of the element in the {@link FrameTable} */
+    private final int frameId;
+
     /** A description of the element */
     private final Description description;
 
-    public StackTraceNode(Description description) {
+    /** The method descriptor, resolved on first use */
+    private String methodDesc;
+    private boolean methodDescResolved = false;
+
+    public StackTraceNode(int frameId, Description description) {
+        this.frameId = frameId;
         this.description = description;
     }
 
+    public int getFrameId() {
+        return this.frameId;
+    }
+
+    public Description getDescription() {
+        return this.description;
+    }
+
     public String getClassName() {
         return this.description.className;
     }
@@ -59,7 +75,37 @@ public final class StackTraceNode extends AbstractNode implements Comparable<Sta
         return this.description.parentLineNumber;
     }
 
+    /**
+     * Gets the descriptor of the method, if it can be determined.
+     *
+     * <p>The descriptor is only resolved once for each node.</p>
+     *
+     * @param methodDisambiguator the disambiguator used to resolve the descriptor
+     * @return the descriptor, or null
+     */
+    public String getMethodDesc(MethodDisambiguator methodDisambiguator) {
+        if (!this.methodDescResolved) {
+            this.methodDesc = methodDisambiguator.disambiguate(this)
+                    .map(MethodDisambiguator.MethodDescription::getDesc)
+                    .orElse(null);
+            this.methodDescResolved = true;
+        }
+        return this.methodDesc;
+    }
+
     public SparkProtos.StackTraceNode toProto(MergeMode mergeMode) {
+        return toProtoBuilder(mergeMode)
+                .addAllChildren(NodeExporter.exportChildren(this, mergeMode))
+                .build();
+    }
+
+    /**
+     * Creates a proto builder for this node, without any children.
+     *
+     * @param mergeMode the merge mode
+     * @return the builder
+     */
+    SparkProtos.StackTraceNode.Builder toProtoBuilder(MergeMode mergeMode) {
         SparkProtos.StackTraceNode.Builder proto = SparkProtos.StackTraceNode.newBuilder()
                 .setTime(getTotalTime())
                 .setClassName(this.description.className)
@@ -73,15 +119,12 @@ public final class StackTraceNode extends AbstractNode implements Comparable<Sta
             proto.setParentLineNumber(this.description.parentLineNumber);
         }
 
-        mergeMode.getMethodDisambiguator().disambiguate(this)
-                .map(MethodDisambiguator.MethodDescription::getDesc)
-                .ifPresent(proto::setMethodDesc);
-
-        for (StackTraceNode child : exportChildren(mergeMode)) {
-            proto.addChildren(child.toProto(mergeMode));
+        String methodDesc = getMethodDesc(mergeMode.getMethodDisambiguator());
+        if (methodDesc != null) {
+            proto.setMethodDesc(methodDesc);
         }
 
-        return proto.build();
+        return proto;
     }
 
     @Override
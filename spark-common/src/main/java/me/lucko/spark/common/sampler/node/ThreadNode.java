@@ -25,26 +25,154 @@ import me.lucko.spark.proto.SparkProtos;
 /**
  * The root of a sampling stack for a given thread / thread group.
  */
-public final class ThreadNode extends AbstractNode {
+public final class ThreadNode {
+
+    /**
+     * The maximum number of distinct stacks to count before they are flushed into the tree
+     */
+    private static final int MAX_PENDING_STACKS = 1024;
 
     /**
      * The name of this thread
      */
     private final String threadName;
 
-    public ThreadNode(String threadName) {
+    /** The table used to resolve the frame ids in the tree */
+    private final FrameTable frameTable;
+
+    /**
+     * The recorded samples, and the node in the tree they are recorded under
+     */
+    private final CallTree tree;
+    private final int root;
+
+    /**
+     * Samples which have been counted but not yet inserted into the tree
+     */
+    private final StackCounts pending = new StackCounts();
+
+    /**
+     * The table the pending stack ids refer to, or null if there are none
+     */
+    private StackTable pendingTable;
+
+    public ThreadNode(String threadName, FrameTable frameTable) {
+        this(threadName, frameTable, new ArrayCallTree(), CallTree.ROOT);
+    }
+
+    /**
+     * Creates a thread node which records its samples in a {@link MappedCallTree}.
+     *
+     * @param threadName the name of the thread
+     * @param frameTable the frame table
+     * @param tree the tree
+     * @param root the {@link MappedCallTree#resolveGroupRoot(int) root} for this thread in the tree
+     */
+    public ThreadNode(String threadName, FrameTable frameTable, MappedCallTree tree, int root) {
+        this(threadName, frameTable, (CallTree) tree, root);
+    }
+
+    private ThreadNode(String threadName, FrameTable frameTable, CallTree tree, int root) {
         this.threadName = threadName;
+        this.frameTable = frameTable;
+        this.tree = tree;
+        this.root = root;
+    }
+
+    public String getThreadName() {
+        return this.threadName;
+    }
+
+    /**
+     * Logs a sample of the given stack.
+     *
+     * <p>Repeated samples of the same stack are counted, and only inserted into the
+     * tree when the node is {@link #flush() flushed}. The pending samples are flushed
+     * early if a sample from a different stack table is logged.</p>
+     *
+     * @param stackTable the table the stack was interned into, using this node's {@link FrameTable}
+     * @param stackId the id of the stack in the table
+     * @param time the time to add, in microseconds
+     */
+    public void log(StackTable stackTable, int stackId, long time) {
+        if (stackTable != this.pendingTable) {
+            flush();
+            this.pendingTable = stackTable;
+        }
+        this.pending.add(stackId, time);
+        if (this.pending.size() >= MAX_PENDING_STACKS) {
+            flush();
+        }
+    }
+
+    /**
+     * Inserts all pending samples into the tree.
+     *
+     * <p>The node no longer refers to the stack table afterwards.</p>
+     */
+    public void flush() {
+        StackTable stackTable = this.pendingTable;
+        if (stackTable != null) {
+            this.pending.drain((stackId, time) -> this.tree.log(this.root, stackTable.get(stackId), time));
+            this.pendingTable = null;
+        }
+    }
+
+    /**
+     * Adds all of the samples recorded by another node to this node.
+     *
+     * <p>The other node is {@link #flush() flushed} in the process. If it uses a different
+     * {@link FrameTable}, its frames are interned into this node's table.</p>
+     *
+     * @param other the other node
+     */
+    public void merge(ThreadNode other) {
+        other.flush();
+        if (other.frameTable == this.frameTable) {
+            this.tree.merge(this.root, other.tree, other.root);
+            return;
+        }
+
+        FrameTable otherFrameTable = other.frameTable;
+        this.tree.merge(this.root, other.tree, other.root, frameId -> {
+            FrameTable.Frame frame = otherFrameTable.get(frameId);
+            return this.frameTable.intern(frame.getClassName(), frame.getMethodName(), frame.getLineNumber());
+        });
     }
 
+    /**
+     * Returns the total sample time for this thread in milliseconds.
+     *
+     * @return the total time
+     */
+    public double getTotalTime() {
+        flush();
+        return this.tree.time(this.root) / 1000d;
+    }
+
+    /**
+     * Exports the node to protobuf.
+     *
+     * <p>Safe to call concurrently for nodes which share a {@link MappedCallTree}. When called
+     * from a {@link java.util.concurrent.ForkJoinPool}, large subtrees are exported in
+     * parallel.</p>
+     *
+     * @param mergeMode the merge mode
+     * @return the exported node
+     */
     public SparkProtos.ThreadNode toProto(MergeMode mergeMode) {
         SparkProtos.ThreadNode.Builder proto = SparkProtos.ThreadNode.newBuilder()
-                .setName(this.threadName)
-                .setTime(getTotalTime());
+                .setName(this.threadName);
 
-        for (StackTraceNode child : exportChildren(mergeMode)) {
-            proto.addChildren(child.toProto(mergeMode));
+        // create nodes for the recorded call tree
+        // (the tree isn't thread safe, and may be shared with other thread nodes)
+        AbstractNode node = new AbstractNode() {};
+        synchronized (this.tree) {
+            flush();
+            proto.setTime(this.tree.time(this.root) / 1000d);
+            node.materializeChildren(this.tree, this.root, this.frameTable);
         }
 
-        return proto.build();
+        return proto.addAllChildren(NodeExporter.exportChildren(node, mergeMode)).build();
     }
 }
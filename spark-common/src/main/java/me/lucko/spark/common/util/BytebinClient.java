@@ -30,6 +30,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSink;
 
 import java.io.IOException;
 
@@ -69,8 +70,25 @@ public class BytebinClient extends AbstractHttpClient {
      * @throws IOException if an error occurs
      */
     public Content postContent(byte[] buf, MediaType contentType, boolean allowModification) throws IOException {
-        RequestBody body = RequestBody.create(contentType, buf);
+        return postContent(RequestBody.create(contentType, buf), allowModification);
+    }
 
+    /**
+     * POSTs content to bytebin, compressing and streaming it to the server as it is serialized.
+     *
+     * <p>The payload is only written once, so the request will not be retried.</p>
+     *
+     * @param payload the content
+     * @param contentType the type of the content
+     * @param allowModification if the paste should be modifiable
+     * @return the key of the resultant content
+     * @throws IOException if an error occurs
+     */
+    public Content postContent(StreamingPayload payload, MediaType contentType, boolean allowModification) throws IOException {
+        return postContent(new StreamingRequestBody(payload, contentType), allowModification);
+    }
+
+    private Content postContent(RequestBody body, boolean allowModification) throws IOException {
         Request.Builder requestBuilder = new Request.Builder()
                 .url(this.url + "post")
                 .header("User-Agent", this.userAgent)
@@ -124,6 +142,39 @@ public class BytebinClient extends AbstractHttpClient {
         makeHttpRequest(request).close();
     }
 
+    /**
+     * A request body which writes a GZIP compressed {@link StreamingPayload} directly to the connection.
+     */
+    private static final class StreamingRequestBody extends RequestBody {
+        private final StreamingPayload payload;
+        private final MediaType contentType;
+
+        StreamingRequestBody(StreamingPayload payload, MediaType contentType) {
+            this.payload = payload;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return this.contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1; // unknown, sent using chunked encoding
+        }
+
+        @Override
+        public boolean isOneShot() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            this.payload.writeCompressed(sink.outputStream());
+        }
+    }
+
     public static final class Content {
         private final String key;
         private final boolean modifiable;
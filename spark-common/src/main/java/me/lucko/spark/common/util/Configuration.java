@@ -0,0 +1,83 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The options set for the platform in the {@code config.json} file in the plugin directory.
+ *
+ * <p>Options which are missing, or have the wrong type, take their default value.</p>
+ */
+public final class Configuration {
+    private static final JsonParser PARSER = new JsonParser();
+
+    private final JsonObject root;
+
+    public Configuration(Path file) {
+        this.root = load(file);
+    }
+
+    private static JsonObject load(Path file) {
+        if (!Files.exists(file)) {
+            return new JsonObject();
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            JsonElement element = PARSER.parse(reader);
+            if (element.isJsonObject()) {
+                return element.getAsJsonObject();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return new JsonObject();
+    }
+
+    private JsonPrimitive getPrimitive(String path) {
+        JsonElement element = this.root.get(path);
+        return element != null && element.isJsonPrimitive() ? element.getAsJsonPrimitive() : null;
+    }
+
+    public boolean getBoolean(String path, boolean def) {
+        JsonPrimitive value = getPrimitive(path);
+        return value != null && value.isBoolean() ? value.getAsBoolean() : def;
+    }
+
+    public double getDouble(String path, double def) {
+        JsonPrimitive value = getPrimitive(path);
+        return value != null && value.isNumber() ? value.getAsDouble() : def;
+    }
+
+    public int getInteger(String path, int def) {
+        JsonPrimitive value = getPrimitive(path);
+        return value != null && value.isNumber() ? value.getAsInt() : def;
+    }
+
+}
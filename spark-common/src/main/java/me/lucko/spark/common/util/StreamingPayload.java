@@ -0,0 +1,94 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.util;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A protobuf message which is serialized incrementally into its destination, instead of
+ * being built and encoded in memory up front.
+ */
+@FunctionalInterface
+public interface StreamingPayload {
+
+    /** The size of the buffers used when writing */
+    int BUFFER_SIZE = 8192;
+
+    /**
+     * Writes the fields of the message to the given stream.
+     *
+     * @param out the stream
+     * @throws IOException if an error occurs
+     */
+    void writeTo(CodedOutputStream out) throws IOException;
+
+    /**
+     * Writes the GZIP compressed message to the given stream. The stream is not closed.
+     *
+     * @param out the stream
+     * @throws IOException if an error occurs
+     */
+    default void writeCompressed(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+        CodedOutputStream coded = CodedOutputStream.newInstance(gzip, BUFFER_SIZE);
+        writeTo(coded);
+        coded.flush();
+        gzip.finish();
+        gzip.flush();
+    }
+
+    /**
+     * Writes the GZIP compressed message to the given file, replacing any existing content.
+     *
+     * @param file the file
+     * @throws IOException if an error occurs
+     */
+    default void writeCompressed(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeCompressed(Channels.newOutputStream(channel));
+        }
+    }
+
+    /**
+     * Writes the GZIP compressed message to a byte array.
+     *
+     * @return the compressed message
+     */
+    default byte[] toCompressedByteArray() {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        try {
+            writeCompressed(byteOut);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return byteOut.toByteArray();
+    }
+
+}
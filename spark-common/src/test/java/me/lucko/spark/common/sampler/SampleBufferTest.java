@@ -0,0 +1,214 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+import org.junit.Test;
+
+import java.lang.management.ThreadInfo;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SampleBufferTest {
+
+    /** An executor which runs tasks when asked to */
+    private static final class ManualExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean shutdown = false;
+
+        @Override
+        public void execute(Runnable command) {
+            if (this.shutdown) {
+                throw new RejectedExecutionException();
+            }
+            this.tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /** A data aggregator which records the dumps inserted into it */
+    private static final class RecordingAggregator implements DataAggregator {
+        private final List<ThreadInfo[]> dumps = new ArrayList<>();
+        private final List<Long> captureTimes = new ArrayList<>();
+        private final List<Long> times = new ArrayList<>();
+
+        @Override
+        public synchronized void insertData(ThreadInfo[] threadInfos, long captureTime, long time, long[] weights, int tick) {
+            this.dumps.add(threadInfos);
+            this.captureTimes.add(captureTime);
+            this.times.add(time);
+        }
+
+        @Override
+        public void insertData(long threadId, String threadName, StackTraceElement[] stack, long captureTime, long time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, ThreadNode> getData() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SamplerMetadata.DataAggregator getMetadata() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final RecordingAggregator aggregator = new RecordingAggregator();
+
+    private SampleBuffer createBuffer(OverflowPolicy policy, int capacity) {
+        return new SampleBuffer(this.executor, this.aggregator, null, new SamplerOverhead(), policy, capacity, 1);
+    }
+
+    private static void assertStatistics(SampleBuffer buffer, long captured, long dropped, long coalesced, long skipped) {
+        SamplerMetadata.SamplingStatistics statistics = buffer.toProto().build();
+        assertEquals("captured", captured, statistics.getCapturedSamples());
+        assertEquals("dropped", dropped, statistics.getDroppedSamples());
+        assertEquals("coalesced", coalesced, statistics.getCoalescedSamples());
+        assertEquals("skipped", skipped, statistics.getSkippedSamples());
+    }
+
+    @Test
+    public void testDumpsAreInsertedInOrder() {
+        SampleBuffer buffer = createBuffer(OverflowPolicy.DROP, 4);
+        for (int i = 0; i < 3; i++) {
+            buffer.offer(new ThreadInfo[0], i, 1000, null, DataAggregator.UNKNOWN_TICK);
+        }
+        this.executor.runAll();
+
+        assertEquals(3, this.aggregator.dumps.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, (long) this.aggregator.captureTimes.get(i));
+        }
+        assertStatistics(buffer, 3, 0, 0, 0);
+    }
+
+    @Test
+    public void testDropDiscardsNewDumpsWhenFull() {
+        SampleBuffer buffer = createBuffer(OverflowPolicy.DROP, 2);
+        ThreadInfo[] first = new ThreadInfo[0];
+        ThreadInfo[] second = new ThreadInfo[0];
+        buffer.offer(first, 1, 1000, null, 0);
+        buffer.offer(second, 2, 1000, null, 0);
+        buffer.offer(new ThreadInfo[0], 3, 1000, null, 0);
+        buffer.offer(new ThreadInfo[0], 4, 1000, null, 0);
+        assertStatistics(buffer, 4, 2, 0, 0);
+
+        this.executor.runAll();
+        assertEquals(2, this.aggregator.dumps.size());
+        assertSame(first, this.aggregator.dumps.get(0));
+        assertSame(second, this.aggregator.dumps.get(1));
+        assertEquals(1000, (long) this.aggregator.times.get(1));
+
+        // there is space again once the buffer has been drained
+        buffer.offer(new ThreadInfo[0], 5, 1000, null, 0);
+        assertStatistics(buffer, 5, 2, 0, 0);
+    }
+
+    @Test
+    public void testCoalesceCarriesTimeIntoTheNewestDump() {
+        SampleBuffer buffer = createBuffer(OverflowPolicy.COALESCE, 2);
+        ThreadInfo[] newest = new ThreadInfo[0];
+        buffer.offer(new ThreadInfo[0], 1, 1000, null, 0);
+        buffer.offer(new ThreadInfo[0], 2, 1000, null, 0);
+        buffer.offer(new ThreadInfo[0], 3, 500, null, 0);
+        buffer.offer(newest, 4, 250, null, 0);
+        assertStatistics(buffer, 4, 0, 2, 0);
+
+        this.executor.runAll();
+        assertEquals(2, this.aggregator.dumps.size());
+        assertSame(newest, this.aggregator.dumps.get(1));
+        assertEquals(4, (long) this.aggregator.captureTimes.get(1));
+        assertEquals(1750, (long) this.aggregator.times.get(1));
+
+        // no time is lost
+        long total = 0;
+        for (long time : this.aggregator.times) {
+            total += time;
+        }
+        assertEquals(2750, total);
+    }
+
+    @Test
+    public void testCoalesceDropsDumpsFromDifferentTicks() {
+        SampleBuffer buffer = createBuffer(OverflowPolicy.COALESCE, 2);
+        buffer.offer(new ThreadInfo[0], 1, 1000, null, 0);
+        buffer.offer(new ThreadInfo[0], 2, 1000, null, 0);
+        buffer.offer(new ThreadInfo[0], 3, 1000, null, 1);
+        assertStatistics(buffer, 3, 1, 0, 0);
+
+        this.executor.runAll();
+        assertEquals(1000, (long) this.aggregator.times.get(1));
+    }
+
+    @Test
+    public void testSlowDownSkipsCapturesWhenFull() {
+        SampleBuffer buffer = createBuffer(OverflowPolicy.SLOW_DOWN, 2);
+        assertTrue(buffer.shouldCapture());
+        buffer.offer(new ThreadInfo[0], 1, 1000, null, 0);
+        assertTrue(buffer.shouldCapture());
+        buffer.offer(new ThreadInfo[0], 2, 1000, null, 0);
+
+        assertFalse(buffer.shouldCapture());
+        assertFalse(buffer.shouldCapture());
+        assertStatistics(buffer, 2, 0, 0, 2);
+
+        this.executor.runAll();
+        assertTrue(buffer.shouldCapture());
+        assertStatistics(buffer, 2, 0, 0, 2);
+    }
+
+    @Test
+    public void testCompleteInsertsRemainingDumps() {
+        SampleBuffer buffer = createBuffer(OverflowPolicy.DROP, 4);
+        this.executor.shutdown = true;
+        buffer.offer(new ThreadInfo[0], 1, 1000, null, 0);
+        buffer.offer(new ThreadInfo[0], 2, 1000, null, 0);
+        assertEquals(0, this.aggregator.dumps.size());
+
+        buffer.complete();
+        assertEquals(2, this.aggregator.dumps.size());
+        assertStatistics(buffer, 2, 0, 0, 0);
+    }
+
+}
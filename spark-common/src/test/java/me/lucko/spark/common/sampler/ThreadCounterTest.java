@@ -0,0 +1,103 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ThreadCounterTest {
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private Thread otherThread;
+
+    /** A dump of this thread and another */
+    private ThreadInfo[] dump;
+
+    @Before
+    public void setUp() {
+        this.otherThread = new Thread(() -> {
+            try {
+                this.latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        this.otherThread.start();
+        this.dump = this.threadBean.getThreadInfo(new long[]{Thread.currentThread().getId(), this.otherThread.getId()});
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        this.latch.countDown();
+        this.otherThread.join();
+    }
+
+    @Test
+    public void testFirstValuesHaveNoWeight() {
+        ThreadCounter counter = ThreadCounter.cpuTime(this.threadBean);
+
+        assertArrayEquals(new long[]{0, 0}, counter.toWeights(this.dump, new long[]{5_000_000, 1_000}));
+        assertArrayEquals(new long[]{2_000, 1}, counter.toWeights(this.dump, new long[]{7_000_000, 2_000}));
+    }
+
+    @Test
+    public void testRemainderIsCarriedOver() {
+        // values in nanoseconds, weights in microseconds
+        ThreadCounter counter = ThreadCounter.cpuTime(this.threadBean);
+        counter.toWeights(this.dump, new long[]{0, 0});
+
+        assertArrayEquals(new long[]{0, 1}, counter.toWeights(this.dump, new long[]{600, 1_500}));
+        assertArrayEquals(new long[]{1, 1}, counter.toWeights(this.dump, new long[]{1_200, 2_100}));
+        assertArrayEquals(new long[]{0, 1}, counter.toWeights(this.dump, new long[]{1_900, 3_000}));
+        assertArrayEquals(new long[]{1, 0}, counter.toWeights(this.dump, new long[]{2_000, 3_000}));
+    }
+
+    @Test
+    public void testUnavailableValuesAreSkipped() {
+        ThreadCounter counter = ThreadCounter.cpuTime(this.threadBean);
+        counter.toWeights(this.dump, new long[]{1_000, 1_000});
+
+        // the previous value is kept, so the next available value includes the skipped time
+        assertArrayEquals(new long[]{0, 1}, counter.toWeights(this.dump, new long[]{-1, 2_000}));
+        assertArrayEquals(new long[]{2, 0}, counter.toWeights(this.dump, new long[]{3_000, 2_000}));
+
+        assertArrayEquals(new long[]{0, 1}, counter.toWeights(new ThreadInfo[]{null, this.dump[1]}, new long[]{9_000, 3_000}));
+    }
+
+    @Test
+    public void testDecreasingValuesHaveNoWeight() {
+        ThreadCounter counter = ThreadCounter.cpuTime(this.threadBean);
+        counter.toWeights(this.dump, new long[]{5_000, 5_000});
+
+        assertArrayEquals(new long[]{0, 0}, counter.toWeights(this.dump, new long[]{4_000, 5_000}));
+        assertArrayEquals(new long[]{1, 1}, counter.toWeights(this.dump, new long[]{6_000, 6_000}));
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThreadGroupCacheTest {
+    /** Enough threads to fill several generations of the cache */
+    private static final int MANY_THREADS = 10_000;
+
+    private final List<String> computed = new ArrayList<>();
+    private final ThreadGroupCache cache = new ThreadGroupCache(threadName -> {
+        this.computed.add(threadName);
+        return threadName + " (group)";
+    });
+
+    private int computeCount(String threadName) {
+        int count = 0;
+        for (String name : this.computed) {
+            if (name.equals(threadName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testGroupIsComputedOnce() {
+        assertEquals("main (group)", this.cache.getGroup(1, "main"));
+        assertEquals("main (group)", this.cache.getGroup(1, "main"));
+        assertEquals(1, computeCount("main"));
+    }
+
+    @Test
+    public void testRenamedThreadIsRegrouped() {
+        this.cache.getGroup(1, "worker");
+        assertEquals("renamed (group)", this.cache.getGroup(1, "renamed"));
+        assertEquals("renamed (group)", this.cache.getGroup(1, "renamed"));
+        assertEquals(1, computeCount("renamed"));
+    }
+
+    @Test
+    public void testDeadThreadsAreEvicted() {
+        this.cache.getGroup(0, "dead");
+        for (int i = 1; i <= MANY_THREADS; i++) {
+            this.cache.getGroup(i, "thread-" + i);
+        }
+
+        assertEquals("dead (group)", this.cache.getGroup(0, "dead"));
+        assertEquals(2, computeCount("dead"));
+    }
+
+    @Test
+    public void testLiveThreadsAreRetained() {
+        this.cache.getGroup(0, "live");
+        for (int i = 1; i <= MANY_THREADS; i++) {
+            this.cache.getGroup(i, "thread-" + i);
+            if (i % 100 == 0) {
+                // still being sampled
+                this.cache.getGroup(0, "live");
+            }
+        }
+
+        assertEquals("live (group)", this.cache.getGroup(0, "live"));
+        assertEquals(1, computeCount("live"));
+        assertEquals(MANY_THREADS + 1, this.computed.size());
+    }
+
+    @Test
+    public void testRecentThreadsSurviveAGenerationChange() {
+        for (int i = 1; i <= MANY_THREADS; i++) {
+            this.cache.getGroup(i, "thread-" + i);
+        }
+
+        // the most recent threads are in the current or previous generation
+        int computedBefore = this.computed.size();
+        for (int i = MANY_THREADS - 100; i <= MANY_THREADS; i++) {
+            this.cache.getGroup(i, "thread-" + i);
+        }
+        assertEquals(computedBefore, this.computed.size());
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.proto.SparkProtos.SamplerMetadata;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadGrouperTest {
+
+    private static ThreadGrouper.ByRules createRules() {
+        Map<String, String> rules = new LinkedHashMap<>();
+        rules.put("Netty .*", "Netty");
+        rules.put("Server.*", "Server");
+        rules.put(".*thread.*", "Other");
+        return new ThreadGrouper.ByRules(rules);
+    }
+
+    @Test
+    public void testBuiltInGroupers() {
+        assertEquals("Worker-3", ThreadGrouper.BY_NAME.getGroup(1, "Worker-3"));
+        assertEquals("Worker (Combined)", ThreadGrouper.BY_POOL.getGroup(1, "Worker-3"));
+        assertEquals("Worker (Combined)", ThreadGrouper.BY_POOL.getGroup(2, "Worker #12"));
+        assertEquals("main", ThreadGrouper.BY_POOL.getGroup(3, "main"));
+        assertEquals("All", ThreadGrouper.AS_ONE.getGroup(1, "Worker-3"));
+    }
+
+    @Test
+    public void testRulesAreCheckedInOrder() {
+        ThreadGrouper grouper = createRules();
+        assertEquals("Netty", grouper.getGroup(1, "Netty Epoll Server IO #1"));
+        assertEquals("Server", grouper.getGroup(2, "Server thread"));
+        assertEquals("Other", grouper.getGroup(3, "Some Thread"));
+    }
+
+    @Test
+    public void testUnmatchedThreadsAreGroupedByPool() {
+        ThreadGrouper grouper = createRules();
+        assertEquals("Worker (Combined)", grouper.getGroup(1, "Worker-3"));
+        assertEquals("main", grouper.getGroup(2, "main"));
+    }
+
+    @Test
+    public void testRulesAreIncludedInMetadata() {
+        ThreadGrouper grouper = createRules();
+        assertEquals(SamplerMetadata.DataAggregator.ThreadGrouper.CUSTOM, grouper.asProto());
+
+        List<SamplerMetadata.DataAggregator.ThreadGrouperRule> rules = grouper.rulesAsProto();
+        assertEquals(3, rules.size());
+        assertEquals("Netty .*", rules.get(0).getPattern());
+        assertEquals("Netty", rules.get(0).getGroup());
+        assertEquals(".*thread.*", rules.get(2).getPattern());
+        assertEquals("Other", rules.get(2).getGroup());
+
+        assertTrue(ThreadGrouper.BY_POOL.rulesAsProto().isEmpty());
+    }
+
+}
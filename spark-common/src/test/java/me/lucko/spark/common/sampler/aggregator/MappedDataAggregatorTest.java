@@ -0,0 +1,179 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler.aggregator;
+
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.util.MethodDisambiguator;
+import me.lucko.spark.proto.SparkProtos;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class MappedDataAggregatorTest {
+    private static final int INTERVAL = 1000;
+
+    private Path directory;
+    private ExecutorService workerPool;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("spark-mapped").resolve("data");
+        this.workerPool = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.workerPool.shutdownNow();
+        if (Files.exists(this.directory)) {
+            try (Stream<Path> files = Files.list(this.directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(this.directory);
+        }
+        Files.delete(this.directory.getParent());
+    }
+
+    private MappedDataAggregator open() throws IOException {
+        this.workerPool.shutdownNow();
+        this.workerPool = Executors.newFixedThreadPool(2);
+        return new MappedDataAggregator(this.workerPool, ThreadGrouper.BY_NAME, INTERVAL, false, false, this.directory, SamplerMode.EXECUTION);
+    }
+
+    private static StackTraceElement[] stack(String className) {
+        return new StackTraceElement[]{
+                new StackTraceElement(className, "work", className + ".java", 20),
+                new StackTraceElement(className, "run", className + ".java", 10)
+        };
+    }
+
+    private Map<String, ThreadNode> getData(MappedDataAggregator aggregator) throws InterruptedException {
+        // samples are only guaranteed to be included once the workers have finished
+        this.workerPool.shutdown();
+        assertTrue(this.workerPool.awaitTermination(5, TimeUnit.SECONDS));
+        return aggregator.getData();
+    }
+
+    private static String rootClassName(ThreadNode node) {
+        SparkProtos.ThreadNode proto = node.toProto(MergeMode.sameMethod(new MethodDisambiguator()));
+        return proto.getChildren(0).getClassName();
+    }
+
+    private static void appendTornEntry(Path file) throws IOException {
+        // the length prefix of a string, without all of the string
+        Files.write(file, new byte[]{0, 20, 'a', 'b'}, StandardOpenOption.APPEND);
+    }
+
+    @Test
+    public void testDataResumesAfterRestart() throws Exception {
+        MappedDataAggregator aggregator = open();
+        long startTime = aggregator.getStartTime();
+        for (int i = 0; i < 10; i++) {
+            aggregator.insertData(1, "worker", stack("com.example.Worker"), System.currentTimeMillis(), 1000);
+        }
+        assertEquals(10, getData(aggregator).get("worker").getTotalTime(), 0);
+        aggregator.close(false);
+
+        aggregator = open();
+        assertEquals(startTime, aggregator.getStartTime());
+        aggregator.insertData(1, "worker", stack("com.example.Worker"), System.currentTimeMillis(), 5000);
+        Map<String, ThreadNode> data = getData(aggregator);
+        assertEquals(15, data.get("worker").getTotalTime(), 0);
+        assertEquals("com.example.Worker", rootClassName(data.get("worker")));
+        aggregator.close(true);
+
+        assertFalse(Files.exists(this.directory));
+    }
+
+    @Test
+    public void testRestartWithTornTrailingEntries() throws Exception {
+        MappedDataAggregator aggregator = open();
+        aggregator.insertData(1, "worker", stack("com.example.Worker"), System.currentTimeMillis(), 2000);
+        getData(aggregator);
+        aggregator.close(false);
+
+        Path framesFile = this.directory.resolve("frames.dat");
+        Path groupsFile = this.directory.resolve("groups.dat");
+        long framesSize = Files.size(framesFile);
+        long groupsSize = Files.size(groupsFile);
+        appendTornEntry(framesFile);
+        appendTornEntry(groupsFile);
+
+        // the torn entries are truncated, so new entries are appended after the complete ones
+        aggregator = open();
+        assertEquals(framesSize, Files.size(framesFile));
+        assertEquals(groupsSize, Files.size(groupsFile));
+
+        aggregator.insertData(2, "other", stack("com.example.Other"), System.currentTimeMillis(), 3000);
+        getData(aggregator);
+        aggregator.close(false);
+
+        aggregator = open();
+        Map<String, ThreadNode> data = getData(aggregator);
+        assertEquals(2, data.size());
+        assertEquals(2, data.get("worker").getTotalTime(), 0);
+        assertEquals(3, data.get("other").getTotalTime(), 0);
+        assertEquals("com.example.Worker", rootClassName(data.get("worker")));
+        assertEquals("com.example.Other", rootClassName(data.get("other")));
+        aggregator.close(true);
+    }
+
+    @Test
+    public void testRestartWithLostGroupNamesFails() throws Exception {
+        MappedDataAggregator aggregator = open();
+        aggregator.insertData(1, "worker", stack("com.example.Worker"), System.currentTimeMillis(), 1000);
+        getData(aggregator);
+        aggregator.close(false);
+
+        Files.write(this.directory.resolve("groups.dat"), new byte[0]);
+        assertThrows(IOException.class, this::open);
+    }
+
+    @Test
+    public void testRestartWithDifferentSettingsFails() throws Exception {
+        open().close(false);
+
+        assertThrows(IOException.class, () -> new MappedDataAggregator(this.workerPool, ThreadGrouper.BY_NAME, INTERVAL, false, false, this.directory, SamplerMode.ALLOCATION));
+        assertThrows(IOException.class, () -> new MappedDataAggregator(this.workerPool, ThreadGrouper.BY_NAME, INTERVAL * 2, false, false, this.directory, SamplerMode.EXECUTION));
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler.node;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CallTreeTest {
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("spark-calltree");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(this.directory);
+    }
+
+    private static List<int[]> randomStacks(long seed, int count) {
+        Random random = new Random(seed);
+        List<int[]> stacks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int[] stack = new int[1 + random.nextInt(12)];
+            for (int j = 0; j < stack.length; j++) {
+                // a small frame range, so stacks share prefixes
+                stack[j] = random.nextInt(8);
+            }
+            stacks.add(stack);
+        }
+        return stacks;
+    }
+
+    private static void logAll(CallTree tree, int root, List<int[]> stacks) {
+        for (int i = 0; i < stacks.size(); i++) {
+            tree.log(root, stacks.get(i), 1 + i % 5);
+        }
+    }
+
+    /**
+     * Flattens the subtree under a node into a map of path (frame ids from the root) to time.
+     */
+    private static Map<String, Long> flatten(CallTree tree, int root) {
+        Map<String, Long> paths = new HashMap<>();
+        flatten(tree, root, "", paths);
+        return paths;
+    }
+
+    private static void flatten(CallTree tree, int node, String path, Map<String, Long> paths) {
+        paths.put(path, tree.time(node));
+        for (int child = tree.firstChild(node); child != CallTree.NONE; child = tree.nextSibling(child)) {
+            flatten(tree, child, path + "/" + tree.frame(child), paths);
+        }
+    }
+
+    @Test
+    public void testLogAccumulatesTimeAlongThePath() {
+        ArrayCallTree tree = new ArrayCallTree();
+        tree.log(CallTree.ROOT, new int[]{2, 1}, 10);
+        tree.log(CallTree.ROOT, new int[]{3, 1}, 5);
+        tree.log(CallTree.ROOT, new int[]{2, 1}, 1);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("", 16L);
+        expected.put("/1", 16L);
+        expected.put("/1/2", 11L);
+        expected.put("/1/3", 5L);
+        assertEquals(expected, flatten(tree, CallTree.ROOT));
+    }
+
+    @Test
+    public void testMappedTreeMatchesArrayTree() throws IOException {
+        List<int[]> stacks = randomStacks(1, 20000);
+
+        ArrayCallTree arrayTree = new ArrayCallTree();
+        logAll(arrayTree, CallTree.ROOT, stacks);
+
+        try (MappedCallTree mappedTree = new MappedCallTree(this.directory.resolve("tree.dat"))) {
+            int root = mappedTree.resolveGroupRoot(0);
+            logAll(mappedTree, root, stacks);
+
+            assertEquals(flatten(arrayTree, CallTree.ROOT), flatten(mappedTree, root));
+        }
+    }
+
+    @Test
+    public void testMappedTreeReopensWithTheSameData() throws IOException {
+        Path file = this.directory.resolve("tree.dat");
+        List<int[]> before = randomStacks(2, 5000);
+        List<int[]> after = randomStacks(3, 5000);
+
+        ArrayCallTree arrayTree = new ArrayCallTree();
+        logAll(arrayTree, CallTree.ROOT, before);
+
+        try (MappedCallTree mappedTree = new MappedCallTree(file)) {
+            logAll(mappedTree, mappedTree.resolveGroupRoot(0), before);
+            mappedTree.resolveGroupRoot(3);
+        }
+
+        try (MappedCallTree mappedTree = new MappedCallTree(file)) {
+            int[] groupIds = mappedTree.getGroupIds();
+            Arrays.sort(groupIds);
+            assertArrayEquals(new int[]{0, 3}, groupIds);
+
+            int root = mappedTree.resolveGroupRoot(0);
+            assertEquals(flatten(arrayTree, CallTree.ROOT), flatten(mappedTree, root));
+
+            // the index is rebuilt on open, so existing nodes are found rather than duplicated
+            int size = mappedTree.size();
+            logAll(mappedTree, root, before);
+            assertEquals(size, mappedTree.size());
+
+            logAll(arrayTree, CallTree.ROOT, before);
+            logAll(arrayTree, CallTree.ROOT, after);
+            logAll(mappedTree, root, after);
+            assertEquals(flatten(arrayTree, CallTree.ROOT), flatten(mappedTree, root));
+        }
+    }
+
+    @Test
+    public void testGroupsAreKeptSeparate() throws IOException {
+        List<int[]> first = randomStacks(4, 1000);
+        List<int[]> second = randomStacks(5, 1000);
+
+        ArrayCallTree firstTree = new ArrayCallTree();
+        logAll(firstTree, CallTree.ROOT, first);
+        ArrayCallTree secondTree = new ArrayCallTree();
+        logAll(secondTree, CallTree.ROOT, second);
+
+        try (MappedCallTree mappedTree = new MappedCallTree(this.directory.resolve("tree.dat"))) {
+            logAll(mappedTree, mappedTree.resolveGroupRoot(0), first);
+            logAll(mappedTree, mappedTree.resolveGroupRoot(1), second);
+
+            assertEquals(flatten(firstTree, CallTree.ROOT), flatten(mappedTree, mappedTree.resolveGroupRoot(0)));
+            assertEquals(flatten(secondTree, CallTree.ROOT), flatten(mappedTree, mappedTree.resolveGroupRoot(1)));
+        }
+    }
+
+    @Test
+    public void testMergeMatchesLoggingDirectly() throws IOException {
+        List<int[]> stacks = randomStacks(6, 5000);
+
+        ArrayCallTree arrayTree = new ArrayCallTree();
+        logAll(arrayTree, CallTree.ROOT, stacks);
+
+        try (MappedCallTree mappedTree = new MappedCallTree(this.directory.resolve("tree.dat"))) {
+            int root = mappedTree.resolveGroupRoot(0);
+            mappedTree.merge(root, arrayTree, CallTree.ROOT);
+            assertEquals(flatten(arrayTree, CallTree.ROOT), flatten(mappedTree, root));
+
+            ArrayCallTree copy = new ArrayCallTree();
+            copy.merge(CallTree.ROOT, mappedTree, root);
+            assertEquals(flatten(arrayTree, CallTree.ROOT), flatten(copy, CallTree.ROOT));
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler.node;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThrows;
+
+public class FrameTableTest {
+
+    @Test
+    public void testInternReturnsSameIdForEqualFrames() {
+        FrameTable table = new FrameTable();
+        int id = table.intern("com.example.Foo", "run", 10);
+
+        assertEquals(id, table.intern("com.example.Foo", "run", 10));
+        assertEquals(id, table.intern(new StackTraceElement("com.example.Foo", "run", "Foo.java", 10)));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testInternDistinguishesEachAttribute() {
+        FrameTable table = new FrameTable();
+        int id = table.intern("com.example.Foo", "run", 10);
+
+        assertNotEquals(id, table.intern("com.example.Bar", "run", 10));
+        assertNotEquals(id, table.intern("com.example.Foo", "call", 10));
+        assertNotEquals(id, table.intern("com.example.Foo", "run", 11));
+        assertEquals(4, table.size());
+    }
+
+    @Test
+    public void testIdsAreStableWhenTheTableGrows() {
+        FrameTable table = new FrameTable();
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, table.intern("com.example.Foo", "method" + (i % 7), i));
+        }
+
+        assertEquals(count, table.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, table.intern("com.example.Foo", "method" + (i % 7), i));
+
+            FrameTable.Frame frame = table.get(i);
+            assertEquals(i, frame.getId());
+            assertEquals("com.example.Foo", frame.getClassName());
+            assertEquals("method" + (i % 7), frame.getMethodName());
+            assertEquals(i, frame.getLineNumber());
+        }
+    }
+
+    @Test
+    public void testUnknownIdIsRejected() {
+        FrameTable table = new FrameTable();
+        table.intern("com.example.Foo", "run", 10);
+
+        assertThrows(IllegalArgumentException.class, () -> table.get(1));
+    }
+
+    @Test
+    public void testListenerIsCalledOncePerNewFrame() {
+        FrameTable table = new FrameTable();
+        List<FrameTable.Frame> interned = new ArrayList<>();
+        table.setListener(interned::add);
+
+        table.intern("com.example.Foo", "run", 10);
+        table.intern("com.example.Foo", "run", 10);
+        table.intern("com.example.Foo", "run", 20);
+
+        assertEquals(2, interned.size());
+        assertEquals(0, interned.get(0).getId());
+        assertEquals(20, interned.get(1).getLineNumber());
+    }
+
+    @Test
+    public void testConcurrentInterningAgreesOnIds() throws InterruptedException {
+        FrameTable table = new FrameTable();
+        int count = 2000;
+        int[][] ids = new int[4][count];
+
+        Thread[] threads = new Thread[ids.length];
+        for (int t = 0; t < threads.length; t++) {
+            int[] result = ids[t];
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    result[i] = table.intern("com.example.Foo", "run", i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(count, table.size());
+        for (int i = 0; i < count; i++) {
+            int id = ids[0][i];
+            for (int[] result : ids) {
+                assertEquals(id, result[i]);
+            }
+            assertEquals(i, table.get(id).getLineNumber());
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler.node;
+
+import me.lucko.spark.common.util.MethodDisambiguator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MergeModeTest {
+
+    /** A class with an overloaded method, so nodes can be disambiguated by line number */
+    static final class Overloads {
+        static int call(int value) {
+            return new Throwable().getStackTrace()[0].getLineNumber();
+        }
+
+        static int call(String value) {
+            return new Throwable().getStackTrace()[0].getLineNumber();
+        }
+
+        static int other() {
+            return new Throwable().getStackTrace()[0].getLineNumber();
+        }
+    }
+
+    private static final String OVERLOADS = Overloads.class.getName();
+
+    /**
+     * The original pairwise comparison, which the merge keys must agree with.
+     */
+    private static boolean baselineShouldMerge(MethodDisambiguator methodDisambiguator, boolean separateParentCalls, StackTraceNode n1, StackTraceNode n2) {
+        if (!n1.getClassName().equals(n2.getClassName())) {
+            return false;
+        }
+        if (!n1.getMethodName().equals(n2.getMethodName())) {
+            return false;
+        }
+        if (separateParentCalls && n1.getParentLineNumber() != n2.getParentLineNumber()) {
+            return false;
+        }
+
+        String desc1 = methodDisambiguator.disambiguate(n1).map(MethodDisambiguator.MethodDescription::getDesc).orElse(null);
+        String desc2 = methodDisambiguator.disambiguate(n2).map(MethodDisambiguator.MethodDescription::getDesc).orElse(null);
+        return Objects.equals(desc1, desc2);
+    }
+
+    private static StackTraceNode node(String className, String methodName, int lineNumber, int parentLineNumber) {
+        return new StackTraceNode(0, new StackTraceNode.Description(className, methodName, lineNumber, parentLineNumber));
+    }
+
+    private static List<StackTraceNode> nodes() {
+        int[] lines = {Overloads.call(0), Overloads.call(""), Overloads.other(), 1, StackTraceNode.NULL_LINE_NUMBER};
+        int[] parentLines = {5, 6, StackTraceNode.NULL_LINE_NUMBER};
+
+        List<StackTraceNode> nodes = new ArrayList<>();
+        for (String className : new String[]{OVERLOADS, "com.example.Missing"}) {
+            for (String methodName : new String[]{"call", "other"}) {
+                for (int line : lines) {
+                    for (int parentLine : parentLines) {
+                        nodes.add(node(className, methodName, line, parentLine));
+                    }
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private static void assertMatchesBaseline(boolean separateParentCalls) {
+        MethodDisambiguator methodDisambiguator = new MethodDisambiguator();
+        MergeMode mergeMode = separateParentCalls
+                ? MergeMode.separateParentCalls(methodDisambiguator)
+                : MergeMode.sameMethod(methodDisambiguator);
+
+        List<StackTraceNode> nodes = nodes();
+        for (StackTraceNode n1 : nodes) {
+            for (StackTraceNode n2 : nodes) {
+                boolean expected = baselineShouldMerge(methodDisambiguator, separateParentCalls, n1, n2);
+                assertEquals(expected, mergeMode.shouldMerge(n1, n2));
+
+                MergeMode.Key key1 = mergeMode.getKey(n1);
+                MergeMode.Key key2 = mergeMode.getKey(n2);
+                assertEquals(expected, key1.equals(key2));
+                if (expected) {
+                    assertEquals(key1.hashCode(), key2.hashCode());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSameMethodMatchesBaseline() {
+        assertMatchesBaseline(false);
+    }
+
+    @Test
+    public void testSeparateParentCallsMatchesBaseline() {
+        assertMatchesBaseline(true);
+    }
+
+    @Test
+    public void testOverloadsAreNotMerged() {
+        MergeMode mergeMode = MergeMode.sameMethod(new MethodDisambiguator());
+        StackTraceNode intCall = node(OVERLOADS, "call", Overloads.call(0), 5);
+        StackTraceNode stringCall = node(OVERLOADS, "call", Overloads.call(""), 5);
+
+        assertFalse(mergeMode.shouldMerge(intCall, stringCall));
+        assertTrue(mergeMode.shouldMerge(intCall, node(OVERLOADS, "call", Overloads.call(0), 6)));
+    }
+
+    @Test
+    public void testParentCallsAreOnlySeparatedWhenRequested() {
+        MethodDisambiguator methodDisambiguator = new MethodDisambiguator();
+        StackTraceNode first = node(OVERLOADS, "other", Overloads.other(), 5);
+        StackTraceNode second = node(OVERLOADS, "other", Overloads.other(), 6);
+
+        assertTrue(MergeMode.sameMethod(methodDisambiguator).shouldMerge(first, second));
+        assertFalse(MergeMode.separateParentCalls(methodDisambiguator).shouldMerge(first, second));
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler.node;
+
+import me.lucko.spark.common.util.MethodDisambiguator;
+import me.lucko.spark.proto.SparkProtos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class NodeExporterTest {
+
+    /**
+     * Builds a call tree from random stacks, with frames which share methods so siblings are merged.
+     */
+    private static CallTree randomTree(FrameTable frameTable, long seed, int count, int maxDepth) {
+        Random random = new Random(seed);
+        ArrayCallTree tree = new ArrayCallTree();
+        for (int i = 0; i < count; i++) {
+            int[] stack = new int[1 + random.nextInt(maxDepth)];
+            for (int j = 0; j < stack.length; j++) {
+                stack[j] = frameTable.intern("com.example.Class" + random.nextInt(3), "method" + random.nextInt(3), random.nextInt(4));
+            }
+            tree.log(CallTree.ROOT, stack, 1 + random.nextInt(1000));
+        }
+        return tree;
+    }
+
+    /**
+     * Creates the nodes for a tree. Exporting merges nodes in place, so each export needs its own copy.
+     */
+    private static AbstractNode materialize(CallTree tree, FrameTable frameTable) {
+        AbstractNode node = new AbstractNode() {};
+        node.materializeChildren(tree, CallTree.ROOT, frameTable);
+        return node;
+    }
+
+    /**
+     * The original recursive export, which the iterative export must match.
+     */
+    private static List<SparkProtos.StackTraceNode> exportRecursively(AbstractNode node, MergeMode mergeMode) {
+        List<SparkProtos.StackTraceNode> children = new ArrayList<>();
+        for (StackTraceNode child : node.exportChildren(mergeMode)) {
+            children.add(child.toProtoBuilder(mergeMode)
+                    .addAllChildren(exportRecursively(child, mergeMode))
+                    .build());
+        }
+        return children;
+    }
+
+    private static void assertMatchesRecursiveExport(MergeMode mergeMode, long seed) {
+        FrameTable frameTable = new FrameTable();
+        CallTree tree = randomTree(frameTable, seed, 5000, 20);
+
+        List<SparkProtos.StackTraceNode> expected = exportRecursively(materialize(tree, frameTable), mergeMode);
+        assertEquals(expected, NodeExporter.exportChildren(materialize(tree, frameTable), mergeMode));
+    }
+
+    @Test
+    public void testSameMethodMatchesRecursiveExport() {
+        assertMatchesRecursiveExport(MergeMode.sameMethod(new MethodDisambiguator()), 1);
+    }
+
+    @Test
+    public void testSeparateParentCallsMatchesRecursiveExport() {
+        assertMatchesRecursiveExport(MergeMode.separateParentCalls(new MethodDisambiguator()), 2);
+    }
+
+    @Test
+    public void testParallelExportMatchesRecursiveExport() {
+        MergeMode mergeMode = MergeMode.sameMethod(new MethodDisambiguator());
+        FrameTable frameTable = new FrameTable();
+        CallTree tree = randomTree(frameTable, 3, 20000, 40);
+
+        List<SparkProtos.StackTraceNode> expected = exportRecursively(materialize(tree, frameTable), mergeMode);
+
+        // large subtrees are only forked when exporting from a fork join pool
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            AbstractNode node = materialize(tree, frameTable);
+            assertEquals(expected, pool.submit(() -> NodeExporter.exportChildren(node, mergeMode)).join());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeepTreesDoNotOverflowTheStack() {
+        int depth = 100_000;
+        FrameTable frameTable = new FrameTable();
+        int[] stack = new int[depth];
+        for (int i = 0; i < depth; i++) {
+            stack[i] = frameTable.intern("com.example.Deep", "recurse", i);
+        }
+        ArrayCallTree tree = new ArrayCallTree();
+        tree.log(CallTree.ROOT, stack, 1000);
+
+        List<SparkProtos.StackTraceNode> children = NodeExporter.exportChildren(materialize(tree, frameTable), MergeMode.sameMethod(new MethodDisambiguator()));
+
+        int exportedDepth = 0;
+        while (!children.isEmpty()) {
+            assertEquals(1, children.size());
+            assertEquals(1, children.get(0).getTime(), 0);
+            children = children.get(0).getChildrenList();
+            exportedDepth++;
+        }
+        assertEquals(depth, exportedDepth);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package me.lucko.spark.common.sampler.node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThrows;
+
+public class StackTableTest {
+
+    private static StackTraceElement element(String method, int line) {
+        return new StackTraceElement("com.example.Foo", method, "Foo.java", line);
+    }
+
+    @Test
+    public void testInternReturnsSameIdForEqualStacks() {
+        FrameTable frameTable = new FrameTable();
+        StackTable stackTable = new StackTable();
+
+        StackTraceElement[] stack = {element("b", 2), element("a", 1)};
+        int id = stackTable.intern(frameTable, stack);
+
+        assertEquals(id, stackTable.intern(frameTable, new StackTraceElement[]{element("b", 2), element("a", 1)}));
+        assertArrayEquals(new int[]{frameTable.intern(stack[0]), frameTable.intern(stack[1])}, stackTable.get(id));
+    }
+
+    @Test
+    public void testInternDistinguishesOrderAndLength() {
+        FrameTable frameTable = new FrameTable();
+        StackTable stackTable = new StackTable();
+
+        int id = stackTable.intern(frameTable, new StackTraceElement[]{element("b", 2), element("a", 1)});
+
+        assertNotEquals(id, stackTable.intern(frameTable, new StackTraceElement[]{element("a", 1), element("b", 2)}));
+        assertNotEquals(id, stackTable.intern(frameTable, new StackTraceElement[]{element("a", 1)}));
+        assertNotEquals(id, stackTable.intern(frameTable, new StackTraceElement[]{element("c", 3), element("b", 2), element("a", 1)}));
+    }
+
+    @Test
+    public void testInternFrameIdsOnlyReadsTheGivenLength() {
+        StackTable stackTable = new StackTable();
+
+        int id = stackTable.intern(new int[]{4, 5, 6}, 2);
+
+        assertEquals(id, stackTable.intern(new int[]{4, 5}, 2));
+        assertArrayEquals(new int[]{4, 5}, stackTable.get(id));
+    }
+
+    @Test
+    public void testDeepStacksKeepTheFramesClosestToTheRoot() {
+        FrameTable frameTable = new FrameTable();
+        StackTable stackTable = new StackTable();
+
+        StackTraceElement[] stack = new StackTraceElement[AbstractNode.MAX_STACK_DEPTH + 50];
+        for (int i = 0; i < stack.length; i++) {
+            stack[i] = element("m", stack.length - i);
+        }
+
+        int[] frames = stackTable.get(stackTable.intern(frameTable, stack));
+        assertEquals(AbstractNode.MAX_STACK_DEPTH, frames.length);
+        assertEquals(AbstractNode.MAX_STACK_DEPTH, frameTable.get(frames[0]).getLineNumber());
+        assertEquals(1, frameTable.get(frames[frames.length - 1]).getLineNumber());
+    }
+
+    @Test
+    public void testIdsAreStableWhenTheTableGrows() {
+        StackTable stackTable = new StackTable();
+        int count = 3000;
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, stackTable.intern(new int[]{i, i + 1, i % 3}, 3));
+        }
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, stackTable.intern(new int[]{i, i + 1, i % 3}, 3));
+            assertArrayEquals(new int[]{i, i + 1, i % 3}, stackTable.get(i));
+        }
+        assertThrows(IllegalArgumentException.class, () -> stackTable.get(count));
+    }
+
+    @Test
+    public void testTablesAreIndependent() {
+        StackTable first = new StackTable();
+        StackTable second = new StackTable();
+
+        first.intern(new int[]{1}, 1);
+        int id = first.intern(new int[]{2}, 1);
+
+        // a replacement table starts again from the first id
+        assertEquals(0, second.intern(new int[]{2}, 1));
+        assertArrayEquals(new int[]{2}, first.get(id));
+    }
+
+}